@@ -1,17 +1,26 @@
 package cnv.autoscaler;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalDouble;
 import java.util.OptionalLong;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 
 import cnv.autoscaler.aws.AwsInstanceManager;
 import cnv.autoscaler.loadbalancer.Request;
@@ -24,14 +33,46 @@ public class Instance {
     private final String id;
     private final String baseUri;
 
-    private boolean isStopping = false;
+    private enum State { RUNNING, STOPPING, STOPPED }
 
     /**
-     * Thread-safety: the methods that access this field are all synchronized, so it is safe to use a simple HashMap
+     * RUNNING until stop is called, then STOPPING until no requests are running. Only moves forward, with CAS, so
+     * that starting, updating and ending requests never wait for each other
      */
-    private final Map<Request, Long> requestLoadEstimates = new HashMap<>();
+    private final AtomicReference<State> state = new AtomicReference<>(State.RUNNING);
+
+    /**
+     * Connections to one instance are a single route, so the total and per-route limits are the same. The limit is
+     * well above the requests an instance runs at once, it only guards against unbounded growth.
+     */
+    private static final int MAX_CONNECTIONS = 128;
+    private static final TimeValue IDLE_CONNECTION_TIMEOUT = TimeValue.ofSeconds(30);
+    private static final TimeValue VALIDATE_AFTER_INACTIVITY = TimeValue.ofSeconds(2);
+    private static final RequestConfig HEALTH_CHECK_CONFIG = RequestConfig.custom()
+            .setConnectTimeout(Timeout.ofSeconds(5))
+            .setResponseTimeout(Timeout.ofSeconds(10))
+            .build();
+
+    /**
+     * Keep-alive connections to this instance, shared by forwarded requests and health checks. Open from creation
+     * (health checks run before the instance is registered) until it stops, see onStopped.
+     */
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * The running requests, each holding its own load estimate. currentLoad is kept as the sum of those estimates with
+     * atomic updates
+     */
+    private final Set<Request> inFlightRequests = ConcurrentHashMap.newKeySet();
     private final AtomicLong currentLoad = new AtomicLong(0);
 
+    /**
+     * Told about every change of currentLoad (the registry's load index, while the instance is ready)
+     */
+    private volatile LoadChangeListener loadChangeListener = null;
+
+    private final ThroughputMeter throughput = new ThroughputMeter();
+
     private static final FastEstimator estimator = new FastEstimator();
 
     private static final BetterEstimateFetcher betterEstimateFetcher = new BetterEstimateFetcher();
@@ -41,6 +82,17 @@ public class Instance {
         this.baseUri = baseUri;
 
         logger = Logger.getLogger(Instance.class.getName() + ":" + id);
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                        .setMaxConnTotal(MAX_CONNECTIONS)
+                        .setMaxConnPerRoute(MAX_CONNECTIONS)
+                        // the server may have dropped a connection that sat idle
+                        .setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT)
+                .build();
     }
 
     /**
@@ -50,31 +102,45 @@ public class Instance {
      * @param requestId a UUID that uniquely identifies the request
      * @return the corresponding request object. Empty if the instance is stopping
      */
-    public synchronized Optional<Request> requestStart(String queryString, UUID requestId) {
-        if (isStopping) {
+    public Optional<Request> requestStart(String queryString, UUID requestId) {
+        if (state.get() != State.RUNNING) {
             return Optional.empty();
         }
 
         RequestParams requestParams = new RequestParams(queryString);
-        Request req = new Request(requestId, this, requestParams);
-
-        String algo = req.params().algo;
-        long viewportArea = req.params().viewportArea();
+        return requestStart(requestParams, fastLoadEstimate(requestParams), requestId);
+    }
 
-        requestLoadEstimates.put(req, 0L);
+    /**
+     * Registers the start of a new request on this instance, with the estimate the strategy already got for it (so
+     * the estimator is only looked up once per request, however many instances it is tried on).
+     * @param requestParams the request's parameters
+     * @param estimate the request's fastLoadEstimate
+     * @param requestId a UUID that uniquely identifies the request
+     * @return the corresponding request object. Empty if the instance is stopping
+     */
+    public Optional<Request> requestStart(RequestParams requestParams, FastEstimate estimate, UUID requestId) {
+        if (state.get() != State.RUNNING) {
+            return Optional.empty();
+        }
 
-        long loadEstimate;
+        Request req = new Request(requestId, this, requestParams);
 
-        OptionalLong cachedResult = estimator.getFromCache(requestParams);
-        if (cachedResult.isPresent()) {
-            loadEstimate = cachedResult.getAsLong();
-        } else {
-            loadEstimate = estimator.estimateMethodCount(algo, viewportArea);
+        // counted before the state check, so a forceStop that sees the request also sees it in the meter
+        throughput.requestStarted();
+        inFlightRequests.add(req);
+        if (state.get() != State.RUNNING) {
+            // stop() ran meanwhile and may have seen this request: back out, and finish stopping if it was the last
+            if (endRequest(req)) {
+                throughput.requestEnded(Optional.empty());
+            }
+            finishStoppingIfIdle();
+            return Optional.empty();
         }
 
-        this.updateRequestEstimate(req, loadEstimate);
+        this.updateRequestEstimate(req, estimate.value());
 
-        if (!cachedResult.isPresent()) {
+        if (!estimate.fromSimilarRequests()) {
             // we used a really not very good linear regression
             // try to get a better estimate in the meantime (out of critical path)
             betterEstimateFetcher.queueEstimationRequest(req);
@@ -89,14 +155,15 @@ public class Instance {
      * @param req the corresponding request object to update
      * @param newEstimate the new load estimate for that request
      */
-    public synchronized void updateRequestEstimate(Request req, long newEstimate) {
+    public void updateRequestEstimate(Request req, long newEstimate) {
         newEstimate = Math.max(newEstimate, 1L);
 
-        if (requestLoadEstimates.containsKey(req)) {
+        OptionalLong prevEstimate = req.replaceLoadEstimate(newEstimate);
+        if (prevEstimate.isPresent()) {
             logger.info(String.format("Updating estimate for request %s with %d", req.getId().toString(), newEstimate));
 
-            long prevEstimate = requestLoadEstimates.put(req, newEstimate);
-            currentLoad.addAndGet(newEstimate - prevEstimate);
+            currentLoad.addAndGet(newEstimate - prevEstimate.getAsLong());
+            loadChanged();
         }
     }
 
@@ -105,39 +172,90 @@ public class Instance {
      * @param req the request to remove
      * @param methodCount the real method count provided by the computing instance
      */
-    public synchronized void requestEnd(Request req, Optional<Long> methodCount) {
-        long estimate = requestLoadEstimates.remove(req);
-        currentLoad.addAndGet(-estimate);
+    public void requestEnd(Request req, Optional<Long> methodCount) {
+        if (!endRequest(req)) {
+            return; // already ended by forceStop
+        }
+        throughput.requestEnded(methodCount);
 
         methodCount.ifPresent(c -> {
             logger.info(String.format("Request %s had %d method calls", req.getId(), c));
             estimator.putInCache(req.params(), c);
+            estimator.learn(req.params(), c);
         });
 
-        if (isStopping && requestLoadEstimates.isEmpty()) {
-            this.stop();
+        finishStoppingIfIdle();
+    }
+
+    /**
+     * Removes a request's load and the request itself from this instance.
+     * @return false if it had already been removed
+     */
+    private boolean endRequest(Request req) {
+        OptionalLong estimate = req.end();
+        if (!estimate.isPresent()) {
+            return false;
         }
+
+        inFlightRequests.remove(req);
+        currentLoad.addAndGet(-estimate.getAsLong());
+        loadChanged();
+        return true;
     }
 
     /**
-     * Stops the instance.
+     * Stops the instance: it takes no new requests, and is shut down once the running ones end.
      */
-    public synchronized void stop() {
-        isStopping = true;
+    public void stop() {
+        state.compareAndSet(State.RUNNING, State.STOPPING);
+        finishStoppingIfIdle();
+    }
 
-        if (!requestLoadEstimates.isEmpty()) {
-            return; // do it later (when requests are done)
+    /**
+     * Completes the stop once the instance is stopping and has no running requests. Only the first caller to see
+     * that gets to run onStopped.
+     */
+    private void finishStoppingIfIdle() {
+        if (state.get() == State.STOPPING && inFlightRequests.isEmpty()
+                && state.compareAndSet(State.STOPPING, State.STOPPED)) {
+            onStopped();
         }
     }
 
+    /**
+     * Called once, when the instance stopped and has no running requests (or was forcefully stopped), so nothing else
+     * will be sent to it. Closes the pooled connections to this instance.
+     */
+    protected void onStopped() {
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+
     /**
      * Forcefully stops the instance, clearing running requests.
      */
-    public synchronized void forceStop() {
-        requestLoadEstimates.clear();
+    public void forceStop() {
+        for (Request req : inFlightRequests) {
+            if (endRequest(req)) {
+                throughput.requestEnded(Optional.empty());
+            }
+        }
         this.stop();
     }
 
+    /**
+     * @param listener called after each change of this instance's current load, null for none
+     */
+    public void setLoadChangeListener(LoadChangeListener listener) {
+        this.loadChangeListener = listener;
+    }
+
+    private void loadChanged() {
+        LoadChangeListener listener = this.loadChangeListener;
+        if (listener != null) {
+            listener.loadChanged(this);
+        }
+    }
+
     /**
      * @return the current load estimate on the instance
      */
@@ -145,11 +263,62 @@ public class Instance {
         return currentLoad.get();
     }
 
+    /**
+     * @return the measured throughput of this instance, in methods per second. Empty until measured
+     */
+    public OptionalDouble methodsPerSecond() {
+        return throughput.methodsPerSecond();
+    }
+
+    /**
+     * @return the estimator shared by all instances
+     */
+    static FastEstimator estimator() {
+        return estimator;
+    }
+
+    /**
+     * The quick load estimate a request gets when it starts, before any better estimate is fetched.
+     * @param requestParams the request's parameters
+     * @return the estimate from similar past requests if there are any, from the regression model otherwise
+     */
+    public static FastEstimate fastLoadEstimate(RequestParams requestParams) {
+        OptionalLong cachedResult = estimator.getFromCache(requestParams);
+        if (cachedResult.isPresent()) {
+            return new FastEstimate(cachedResult.getAsLong(), true);
+        }
+        return new FastEstimate(estimator.estimateMethodCount(requestParams), false);
+    }
+
+    /**
+     * A request's quick load estimate, and where it came from
+     */
+    public static class FastEstimate {
+        private final long value;
+        private final boolean fromSimilarRequests;
+
+        FastEstimate(long value, boolean fromSimilarRequests) {
+            this.value = value;
+            this.fromSimilarRequests = fromSimilarRequests;
+        }
+
+        public long value() {
+            return value;
+        }
+
+        /**
+         * @return whether it is the method count of similar past requests, rather than the regression model's guess
+         */
+        public boolean fromSimilarRequests() {
+            return fromSimilarRequests;
+        }
+    }
+
     /**
      * @return number of current running requests
      */
-    public synchronized int currentRequestCount() {
-        return requestLoadEstimates.size();
+    public int currentRequestCount() {
+        return inFlightRequests.size();
     }
 
     /**
@@ -167,6 +336,14 @@ public class Instance {
         return this.baseUri;
     }
 
+    /**
+     * @return the pooled client for requests to this instance. Responses must be closed (after consuming their
+     * content) so that their connection goes back to the pool
+     */
+    public CloseableHttpClient getHttpClient() {
+        return this.httpClient;
+    }
+
     public String id() {
         return this.id;
     }
@@ -176,17 +353,25 @@ public class Instance {
      * @return true if instance replied, false otherwise
      */
     public boolean isHealthy() {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            final String uri = getBaseUri() + "/test";
-            logger.info("Checking health of "+uri);
-            final HttpGet innerRequest = new HttpGet(uri);
-            client.execute(innerRequest).close();
+        final String uri = getBaseUri() + "/test";
+        logger.info("Checking health of "+uri);
+        final HttpGet innerRequest = new HttpGet(uri);
+        innerRequest.setConfig(HEALTH_CHECK_CONFIG);
+        try (CloseableHttpResponse response = httpClient.execute(innerRequest)) {
+            // consume the (empty) body so the connection can be reused
+            EntityUtils.consume(response.getEntity());
             return true;
-        } catch (IOException e) {
+        } catch (IOException | IllegalStateException e) {
+            // IllegalStateException: the connection pool was already closed
             return false;
         }
     }
 
+    @FunctionalInterface
+    public interface LoadChangeListener {
+        void loadChanged(Instance instance);
+    }
+
     /**
      * Specialization of the instance class for AWS. Uses CloudWatch API for metrics and the
      * EC2 API for terminating instances.
@@ -202,12 +387,9 @@ public class Instance {
                 .orElseGet(super::getAvgCpuLoad);
         }
 
-        public synchronized void stop() {
-            super.stop();
-
-            if (this.currentRequestCount() == 0) {
-                AwsInstanceManager.terminateInstances(this.id());
-            }
+        protected void onStopped() {
+            super.onStopped();
+            AwsInstanceManager.terminateInstances(this.id());
         }
     }
 }
@@ -1,10 +1,15 @@
 package cnv.autoscaler;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
@@ -16,8 +21,22 @@ public class InstanceRegistry {
     private final Logger logger = Logger.getLogger(InstanceRegistry.class.getName());
     private final AtomicReference<Optional<UnhealthyInstanceTerminatedCallback>> unhealthyInstanceTerminatedCallback = new AtomicReference<>();
     private final Map<String, Instance> readyInstances = new ConcurrentHashMap<>();
+    /**
+     * An immutable copy of the ready instances, replaced whenever one is added or removed (rarely), for strategies
+     * that pick instances by position without copying the registry on each request
+     */
+    private volatile List<Instance> readyInstanceSnapshot = Collections.emptyList();
     private final InstanceHealthChecker healthChecker = new InstanceHealthChecker();
 
+    /**
+     * The ready instances ordered by their current load, kept up to date by the instances as their load changes, so
+     * the least loaded one is found in logarithmic time. indexedLoads holds each instance's entry in it: an instance's
+     * entry is only replaced through indexedLoads.compute, which serializes the updates for that instance (and only
+     * that instance), so the index ends up with the latest load of each ready instance.
+     */
+    private final ConcurrentSkipListSet<LoadEntry> loadIndex = new ConcurrentSkipListSet<>();
+    private final Map<Instance, LoadEntry> indexedLoads = new ConcurrentHashMap<>();
+
     /**
      * @return the collection of instances that are ready
      */
@@ -25,6 +44,17 @@ public class InstanceRegistry {
         return this.readyInstances.values();
     }
 
+    /**
+     * @return an immutable list of the instances that were ready at the last change, without copying
+     */
+    public List<Instance> readyInstanceSnapshot() {
+        return this.readyInstanceSnapshot;
+    }
+
+    private synchronized void updateReadyInstanceSnapshot() {
+        this.readyInstanceSnapshot = Collections.unmodifiableList(new ArrayList<>(readyInstances.values()));
+    }
+
     /**
      * @return the number of instances that are ready
      */
@@ -41,6 +71,9 @@ public class InstanceRegistry {
         Instance instance = readyInstances.remove(id);
         if (instance != null) {
             logger.info(String.format("Instance %s stopping", id));
+            instance.setLoadChangeListener(null);
+            updateLoadIndex(instance);
+            updateReadyInstanceSnapshot();
             instance.stop();
         }
     }
@@ -52,6 +85,42 @@ public class InstanceRegistry {
     public void add(Instance instance) {
         logger.info(String.format("Instance %s ready", instance.id()));
         readyInstances.put(instance.id(), instance);
+        instance.setLoadChangeListener(this::updateLoadIndex);
+        updateLoadIndex(instance);
+        updateReadyInstanceSnapshot();
+    }
+
+    /**
+     * @param excluded instances not to pick
+     * @return the ready instance with the least current load, out of those not excluded. Empty if there is none
+     */
+    public Optional<Instance> leastLoadedInstance(Set<Instance> excluded) {
+        // in load order, so this only walks past the excluded instances
+        for (LoadEntry entry : loadIndex) {
+            if (!excluded.contains(entry.instance)) {
+                return Optional.of(entry.instance);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Moves an instance to its current place in the load index (or out of it, if it is no longer ready).
+     * @param instance the instance whose load changed
+     */
+    private void updateLoadIndex(Instance instance) {
+        indexedLoads.compute(instance, (inst, previous) -> {
+            if (previous != null) {
+                loadIndex.remove(previous);
+            }
+            if (readyInstances.get(inst.id()) != inst) {
+                return null;
+            }
+
+            LoadEntry current = new LoadEntry(inst.currentLoad(), inst);
+            loadIndex.add(current);
+            return current;
+        });
     }
 
     /**
@@ -145,6 +214,25 @@ public class InstanceRegistry {
         }
     }
 
+    /**
+     * An instance's place in the load index: ordered by load, then by id so that all entries are distinct
+     */
+    private static class LoadEntry implements Comparable<LoadEntry> {
+        private final long load;
+        private final Instance instance;
+
+        LoadEntry(long load, Instance instance) {
+            this.load = load;
+            this.instance = instance;
+        }
+
+        @Override
+        public int compareTo(LoadEntry other) {
+            int byLoad = Long.compare(this.load, other.load);
+            return byLoad != 0 ? byLoad : this.instance.id().compareTo(other.instance.id());
+        }
+    }
+
     @FunctionalInterface
     public interface UnhealthyInstanceTerminatedCallback {
         void call();
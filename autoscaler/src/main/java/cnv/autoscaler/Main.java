@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import cnv.autoscaler.autoscaler.AutoScaler;
 import cnv.autoscaler.loadbalancer.LoadBalancer;
+import cnv.autoscaler.loadestimate.EstimateCacheWarmer;
 
 public class Main {
     static {
@@ -16,6 +17,13 @@ public class Main {
         String address = System.getProperty("lb.address", "0.0.0.0");
         int port = Integer.parseInt(System.getProperty("lb.port", "8000"));
 
+        // fill the estimate cache with past requests before taking any, unless disabled with a budget of 0
+        long warmUpBudgetMillis = Long.getLong("lb.warmup.budgetMs", 10000);
+        if (warmUpBudgetMillis > 0) {
+            int warmUpSegments = Integer.getInteger("lb.warmup.segments", 4);
+            new EstimateCacheWarmer(Instance.estimator(), warmUpSegments, warmUpBudgetMillis).warmUp();
+        }
+
         InstanceRegistry registry = new InstanceRegistry();
 
         LoadBalancer lb = new LoadBalancer(registry, address, port);
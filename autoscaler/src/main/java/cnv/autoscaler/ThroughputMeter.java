@@ -0,0 +1,117 @@
+package cnv.autoscaler;
+
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how fast an instance gets through its load: the method counts its requests reported (X-Method-Count), over
+ * the time it spent with requests running. While busy, an instance shares its CPU among its requests, so this is its
+ * throughput whatever the number of requests, and it reflects the instance's actual speed (instance type, noisy
+ * neighbours) rather than assuming they are all equal.
+ *
+ * Samples are taken when requests end, over at least MIN_SAMPLE_TIME of busy time, and smoothed with an exponentially
+ * weighted moving average.
+ *
+ * Thread-safety: lock-free. The running count and busy time are swapped together, as one immutable BusyPeriod, with
+ * compare-and-set; the smoothed rate is published the same way, so strategies read it without contending with the
+ * requests being dispatched.
+ */
+public class ThroughputMeter {
+    private static final long MIN_SAMPLE_TIME = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final double SAMPLE_WEIGHT = 0.2; // of the newest sample
+
+    private final AtomicReference<BusyPeriod> busy = new AtomicReference<>(BusyPeriod.IDLE);
+    private final LongAdder completedMethods = new LongAdder(); // since the last sample
+    private final AtomicLong methodsPerSecondBits = new AtomicLong(Double.doubleToLongBits(0)); // 0 until measured
+
+    public void requestStarted() {
+        BusyPeriod current, next;
+        do {
+            current = busy.get();
+            next = current.runningCount == 0
+                ? new BusyPeriod(1, System.nanoTime(), current.busyTime)
+                : new BusyPeriod(current.runningCount + 1, current.busySince, current.busyTime);
+        } while (!busy.compareAndSet(current, next));
+    }
+
+    /**
+     * @param methodCount the method count reported for the request, empty if it failed
+     */
+    public void requestEnded(Optional<Long> methodCount) {
+        BusyPeriod current, next;
+        long busyTime;
+        boolean sampled;
+        do {
+            current = busy.get();
+            if (current.runningCount == 0) {
+                return; // unbalanced end (each start is ended once by whoever ends the request): ignore it
+            }
+
+            // close the current busy period (a new one starts now if other requests keep running)
+            long now = Math.max(System.nanoTime(), current.busySince);
+            busyTime = current.busyTime + (now - current.busySince);
+            sampled = busyTime >= MIN_SAMPLE_TIME;
+            next = new BusyPeriod(current.runningCount - 1, now, sampled ? 0 : busyTime);
+        } while (!busy.compareAndSet(current, next));
+
+        methodCount.ifPresent(completedMethods::add);
+        if (!sampled) {
+            return;
+        }
+
+        // only the thread that took the busy time gets here, so each sample is counted once
+        long methods = completedMethods.sumThenReset();
+        if (methods > 0) {
+            publishSample(methods / (busyTime / 1e9));
+        } else {
+            giveBackBusyTime(busyTime); // nothing completed yet (failed requests): keep accumulating
+        }
+    }
+
+    private void publishSample(double sample) {
+        long currentBits, nextBits;
+        do {
+            currentBits = methodsPerSecondBits.get();
+            double current = Double.longBitsToDouble(currentBits);
+            double next = current <= 0 ? sample : (1 - SAMPLE_WEIGHT) * current + SAMPLE_WEIGHT * sample;
+            nextBits = Double.doubleToLongBits(next);
+        } while (!methodsPerSecondBits.compareAndSet(currentBits, nextBits));
+    }
+
+    private void giveBackBusyTime(long busyTime) {
+        BusyPeriod current;
+        do {
+            current = busy.get();
+        } while (!busy.compareAndSet(current,
+                new BusyPeriod(current.runningCount, current.busySince, current.busyTime + busyTime)));
+    }
+
+    /**
+     * @return the measured throughput, in methods per second. Empty until some requests finished
+     */
+    public OptionalDouble methodsPerSecond() {
+        double methodsPerSecond = Double.longBitsToDouble(methodsPerSecondBits.get());
+        return methodsPerSecond > 0 ? OptionalDouble.of(methodsPerSecond) : OptionalDouble.empty();
+    }
+
+    /**
+     * Snapshot of the requests running on the instance, replaced as a whole so the count and times stay consistent.
+     */
+    private static final class BusyPeriod {
+        static final BusyPeriod IDLE = new BusyPeriod(0, 0, 0);
+
+        final int runningCount;
+        final long busySince; // when the current busy period started (or the last one was closed)
+        final long busyTime; // ns, since the last sample, up to busySince
+
+        BusyPeriod(int runningCount, long busySince, long busyTime) {
+            this.runningCount = runningCount;
+            this.busySince = busySince;
+            this.busyTime = busyTime;
+        }
+    }
+}
@@ -14,8 +14,16 @@ package cnv.autoscaler.aws;
  * express or implied. See the License for the specific language governing
  * permissions and limitations under the License.
  */
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.OptionalDouble;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 import java.util.logging.Logger;
 
 import com.amazonaws.AmazonClientException;
@@ -23,15 +31,26 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
-import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.CreateGlobalSecondaryIndexAction;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
 
 import cnv.autoscaler.loadbalancer.RequestParams;
@@ -39,6 +58,16 @@ import cnv.autoscaler.loadbalancer.RequestParams;
 /**
  * This class is adapted from Amazon's DynamoDB sample which demonstrates how to perform a few simple operations.
  * The static block initializes the API and creates a DynamoDB table if not yet present.
+ *
+ * Similar requests are looked up in a global secondary index (LOOKUP_INDEX_NAME) rather than by scanning the table:
+ * the web servers key each metric by lookupKey, the strategy, image and LOOKUP_BUCKET_SIZE-wide bucket of (x0, y0),
+ * and the index sorts them by x1. A lookup queries the (at most 4) buckets within RequestParams.POSITION_THRESHOLD
+ * of the request over an x1 range, so it reads only nearby metrics, however many are stored. Both must match the
+ * web servers' (MetricUploader).
+ *
+ * The web servers also keep the statistics of the method counts per cell (see MethodCountStats.cellOf) in another
+ * table, so the statistics of the requests similar to one are usually a single read of its cell (batched with other
+ * requests'). The index is only queried for cells without statistics yet.
  */
 public class AwsMetricDownloader {
     private final static Logger LOGGER = Logger.getLogger(AwsMetricDownloader.class.getName());
@@ -48,75 +77,289 @@ public class AwsMetricDownloader {
     private static final String METRICS_TABLE_NAME = System.getProperty("mss.dynamodb.tablename",
             "radarscanner-metrics");
 
+    private static final String LOOKUP_INDEX_NAME = "lookup-index";
+    private static final int LOOKUP_BUCKET_SIZE = 64;
+    private static final int MAX_BATCH_GET_SIZE = 100; // BatchGetItem limit
+    private static final int MAX_BATCH_GET_ATTEMPTS = 3;
+
+    private static final String STATS_TABLE_NAME = System.getProperty("mss.dynamodb.statstablename",
+            "radarscanner-metrics-stats");
+
     static {
 
         dynamoDB = AmazonDynamoDBClientBuilder.standard().withCredentials(AwsCredentials.credentialsProvider())
                 .withRegion("eu-west-2").build();
 
-        // Create a table with a primary hash key named 'name', which holds a string
+        // Create a table with a primary hash key named 'id', which holds a string, as the web servers do
         CreateTableRequest createTableRequest = new CreateTableRequest().withTableName(METRICS_TABLE_NAME)
-                .withKeySchema(new KeySchemaElement().withAttributeName("name").withKeyType(KeyType.HASH))
+                .withKeySchema(new KeySchemaElement().withAttributeName("id").withKeyType(KeyType.HASH))
+                .withAttributeDefinitions(
+                        new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S),
+                        new AttributeDefinition().withAttributeName("lookupKey").withAttributeType(ScalarAttributeType.S),
+                        new AttributeDefinition().withAttributeName("args.x1").withAttributeType(ScalarAttributeType.N))
+                .withGlobalSecondaryIndexes(lookupIndex())
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
+
+        CreateTableRequest createStatsTableRequest = new CreateTableRequest().withTableName(STATS_TABLE_NAME)
+                .withKeySchema(new KeySchemaElement().withAttributeName("cell").withKeyType(KeyType.HASH))
                 .withAttributeDefinitions(
-                        new AttributeDefinition().withAttributeName("name").withAttributeType(ScalarAttributeType.S))
+                        new AttributeDefinition().withAttributeName("cell").withAttributeType(ScalarAttributeType.S))
                 .withProvisionedThroughput(
                         new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
 
-        // Create table if it does not exist yet
+        // Create tables if they do not exist yet
         TableUtils.createTableIfNotExists(dynamoDB, createTableRequest);
+        TableUtils.createTableIfNotExists(dynamoDB, createStatsTableRequest);
 
         try {
-            // wait for the table to move into ACTIVE state
+            // wait for the tables to move into ACTIVE state
             TableUtils.waitUntilActive(dynamoDB, METRICS_TABLE_NAME);
+            TableUtils.waitUntilActive(dynamoDB, STATS_TABLE_NAME);
+            ensureLookupIndex();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    private static GlobalSecondaryIndex lookupIndex() {
+        return new GlobalSecondaryIndex().withIndexName(LOOKUP_INDEX_NAME)
+                .withKeySchema(
+                        new KeySchemaElement().withAttributeName("lookupKey").withKeyType(KeyType.HASH),
+                        new KeySchemaElement().withAttributeName("args.x1").withKeyType(KeyType.RANGE))
+                .withProjection(new Projection().withProjectionType(ProjectionType.INCLUDE)
+                        .withNonKeyAttributes("args.x0", "args.y0", "args.y1", "methodCount"))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
+    }
+
+    /**
+     * Adds the lookup index to a table created before it existed. DynamoDB backfills it in the background, and
+     * lookups find nothing until then. Metrics stored without a lookupKey are not indexed.
+     */
+    private static void ensureLookupIndex() {
+        TableDescription table = dynamoDB.describeTable(METRICS_TABLE_NAME).getTable();
+        List<GlobalSecondaryIndexDescription> indexes = table.getGlobalSecondaryIndexes();
+        if (indexes != null) {
+            for (GlobalSecondaryIndexDescription index : indexes) {
+                if (LOOKUP_INDEX_NAME.equals(index.getIndexName())) {
+                    return;
+                }
+            }
+        }
+
+        LOGGER.info("Creating index " + LOOKUP_INDEX_NAME + " on table " + METRICS_TABLE_NAME);
+        GlobalSecondaryIndex index = lookupIndex();
+        dynamoDB.updateTable(new UpdateTableRequest().withTableName(METRICS_TABLE_NAME)
+                .withAttributeDefinitions(
+                        new AttributeDefinition().withAttributeName("lookupKey").withAttributeType(ScalarAttributeType.S),
+                        new AttributeDefinition().withAttributeName("args.x1").withAttributeType(ScalarAttributeType.N))
+                .withGlobalSecondaryIndexUpdates(new GlobalSecondaryIndexUpdate().withCreate(
+                        new CreateGlobalSecondaryIndexAction().withIndexName(index.getIndexName())
+                                .withKeySchema(index.getKeySchema())
+                                .withProjection(index.getProjection())
+                                .withProvisionedThroughput(index.getProvisionedThroughput()))));
+    }
+
     /**
-     * Gets the estimated method count for the given RequestParams. The estimate is given by the average of
-     * similar requests present in the database.
-     * @see RequestParams#similarTo(RequestParams) for the similarity measure
-     * @param params the request parameters corresponding to a given request
-     * @return the estimate if similar requests are available. An empty optional otherwise
+     * Gets the statistics of the method counts of similar requests present in the database, for several requests at
+     * once: the ones in the same cell, with batched reads, or for the requests whose cell has no statistics yet, the
+     * ones found through the index.
+     * @see RequestParams#similarTo(RequestParams) for the similarity measure of the index
+     * @param requests the request parameters corresponding to some requests
+     * @return for each request, in order, the statistics if similar requests are available. An empty optional otherwise
      */
-    public static OptionalDouble getEstimatedMethodCountForRequest(RequestParams params) {
+    public static List<Optional<MethodCountStats>> getMethodCountStatsForRequests(List<RequestParams> requests) {
+        Map<String, MethodCountStats> cellStats;
         try {
-            HashMap<String, Condition> scanFilter = new HashMap<String, Condition>();
-
-            Condition strategyCondition = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-                    .withAttributeValueList(new AttributeValue().withS(params.algo));
-            scanFilter.put("args.strategy", strategyCondition);
-            Condition imageCondition = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-                    .withAttributeValueList(new AttributeValue().withS("datasets/" + params.imagePath));
-            scanFilter.put("args.imagePath", imageCondition);
-            addIntervalCondition(scanFilter, "args.x0", params.x0);
-            addIntervalCondition(scanFilter, "args.x1", params.x1);
-            addIntervalCondition(scanFilter, "args.y0", params.y0);
-            addIntervalCondition(scanFilter, "args.y1", params.y1);
-
-            ScanRequest scanRequest = new ScanRequest(METRICS_TABLE_NAME).withScanFilter(scanFilter);
-            ScanResult scanResult = dynamoDB.scan(scanRequest);
-            return scanResult.getItems().stream().mapToDouble(m -> Double.parseDouble(m.get("methodCount").getN()))
-                    .average();
+            cellStats = getCellStats(requests.stream().map(MethodCountStats::cellOf).collect(Collectors.toSet()));
         } catch (AmazonClientException e) {
-            LOGGER.warning("Failed to get better estimate for request: " + e.getMessage());
-            return OptionalDouble.empty();
+            LOGGER.warning("Failed to get method count statistics: " + e.getMessage());
+            cellStats = Collections.emptyMap();
+        }
+
+        List<Optional<MethodCountStats>> stats = new ArrayList<>(requests.size());
+        for (RequestParams params : requests) {
+            MethodCountStats paramsCellStats = cellStats.get(MethodCountStats.cellOf(params));
+            if (paramsCellStats != null) {
+                stats.add(Optional.of(paramsCellStats));
+                continue;
+            }
+
+            try {
+                stats.add(querySimilarRequests(params));
+            } catch (AmazonClientException e) {
+                LOGGER.warning("Failed to get better estimate for request: " + e.getMessage());
+                stats.add(Optional.empty());
+            }
         }
+        return stats;
     }
 
     /**
-     * Adds a condition for a variable to be between a certain interval.
-     * @param filter the current map of filters
-     * @param arg the name of field in the document
+     * Reads the statistics of some cells, MAX_BATCH_GET_SIZE at a time. Keys DynamoDB leaves unprocessed (throttling)
+     * are read again up to MAX_BATCH_GET_ATTEMPTS times
+     * @return the statistics of the cells that have them
+     */
+    private static Map<String, MethodCountStats> getCellStats(Set<String> cells) {
+        Map<String, MethodCountStats> stats = new HashMap<>();
+        List<String> cellList = new ArrayList<>(cells);
+        for (int from = 0; from < cellList.size(); from += MAX_BATCH_GET_SIZE) {
+            List<Map<String, AttributeValue>> keyList = new ArrayList<>();
+            for (String cell : cellList.subList(from, Math.min(from + MAX_BATCH_GET_SIZE, cellList.size()))) {
+                keyList.add(Collections.singletonMap("cell", new AttributeValue().withS(cell)));
+            }
+            KeysAndAttributes keys = new KeysAndAttributes().withKeys(keyList);
+
+            Map<String, KeysAndAttributes> pending = Collections.singletonMap(STATS_TABLE_NAME, keys);
+            for (int attempt = 0; attempt < MAX_BATCH_GET_ATTEMPTS && !pending.isEmpty(); attempt++) {
+                BatchGetItemResult result = dynamoDB.batchGetItem(new BatchGetItemRequest(pending));
+                for (Map<String, AttributeValue> item : result.getResponses()
+                        .getOrDefault(STATS_TABLE_NAME, Collections.emptyList())) {
+                    if (item.containsKey("count") && item.containsKey("max")) {
+                        stats.put(item.get("cell").getS(), new MethodCountStats(Long.parseLong(item.get("count").getN()),
+                                Double.parseDouble(item.get("sum").getN()),
+                                Double.parseDouble(item.get("sumOfSquares").getN()),
+                                Double.parseDouble(item.get("max").getN())));
+                    }
+                }
+                pending = result.getUnprocessedKeys();
+            }
+        }
+        return stats;
+    }
+
+    private static Optional<MethodCountStats> querySimilarRequests(RequestParams params) {
+        String imagePath = "datasets/" + params.imagePath;
+        long threshold = RequestParams.POSITION_THRESHOLD;
+
+        double sum = 0;
+        double sumOfSquares = 0;
+        double max = 0;
+        long count = 0;
+        for (long x0Bucket = bucket(params.x0 - threshold); x0Bucket <= bucket(params.x0 + threshold); x0Bucket++) {
+            for (long y0Bucket = bucket(params.y0 - threshold); y0Bucket <= bucket(params.y0 + threshold); y0Bucket++) {
+                QueryRequest queryRequest = similarRequestsQuery(params, lookupKey(params.algo, imagePath, x0Bucket, y0Bucket));
+
+                // results come in pages of up to 1 MB
+                do {
+                    QueryResult queryResult = dynamoDB.query(queryRequest);
+                    for (Map<String, AttributeValue> item : queryResult.getItems()) {
+                        double methodCount = Double.parseDouble(item.get("methodCount").getN());
+                        sum += methodCount;
+                        sumOfSquares += methodCount * methodCount;
+                        max = Math.max(max, methodCount);
+                        count++;
+                    }
+                    queryRequest.setExclusiveStartKey(queryResult.getLastEvaluatedKey());
+                } while (queryRequest.getExclusiveStartKey() != null);
+            }
+        }
+
+        return count == 0 ? Optional.empty() : Optional.of(new MethodCountStats(count, sum, sumOfSquares, max));
+    }
+
+    /**
+     * Reads the stored metrics of a segment of the table (a parallel scan), page by page.
+     * @param segment the segment to read, from 0 to totalSegments - 1
+     * @param totalSegments the number of segments the table is read in
+     * @param keepGoing checked before each page, stops the scan when false
+     * @param consumer called with the parameters and method count of each metric
+     */
+    public static void scanMetrics(int segment, int totalSegments, BooleanSupplier keepGoing,
+            BiConsumer<RequestParams, Long> consumer) {
+        Map<String, String> names = new HashMap<>();
+        String[] arguments = { "strategy", "imagePath", "x0", "x1", "y0", "y1", "startx", "starty", "width", "height" };
+        StringBuilder projection = new StringBuilder("methodCount");
+        for (String argument : arguments) {
+            names.put("#" + argument, "args." + argument);
+            projection.append(", #").append(argument);
+        }
+
+        ScanRequest scanRequest = new ScanRequest(METRICS_TABLE_NAME)
+                .withSegment(segment).withTotalSegments(totalSegments)
+                .withProjectionExpression(projection.toString())
+                .withExpressionAttributeNames(names);
+        do {
+            ScanResult scanResult = dynamoDB.scan(scanRequest);
+            for (Map<String, AttributeValue> item : scanResult.getItems()) {
+                if (item.containsKey("methodCount") && item.containsKey("args.strategy")
+                        && item.containsKey("args.imagePath")) {
+                    consumer.accept(requestParams(item), Long.parseLong(item.get("methodCount").getN()));
+                }
+            }
+            scanRequest.setExclusiveStartKey(scanResult.getLastEvaluatedKey());
+        } while (scanRequest.getExclusiveStartKey() != null && keepGoing.getAsBoolean());
+    }
+
+    /**
+     * @return the parameters of the request a stored metric is for
+     */
+    private static RequestParams requestParams(Map<String, AttributeValue> item) {
+        String imagePath = item.get("args.imagePath").getS();
+        if (imagePath.startsWith("datasets/")) {
+            imagePath = imagePath.substring("datasets/".length());
+        }
+
+        StringBuilder queryString = new StringBuilder()
+                .append("s=").append(item.get("args.strategy").getS())
+                .append("&i=").append(imagePath);
+        String[][] parameters = { { "x0", "x0" }, { "x1", "x1" }, { "y0", "y0" }, { "y1", "y1" },
+            { "xS", "startx" }, { "yS", "starty" }, { "w", "width" }, { "h", "height" } };
+        for (String[] parameter : parameters) {
+            AttributeValue value = item.get("args." + parameter[1]);
+            if (value != null) {
+                queryString.append('&').append(parameter[0]).append('=').append(value.getN());
+            }
+        }
+        return new RequestParams(queryString.toString());
+    }
+
+    /**
+     * @return the query for the requests of a lookupKey (bucket) similar to the given ones: x1 is within the
+     * threshold through the index's sort key, and the other positions through a filter
+     */
+    private static QueryRequest similarRequestsQuery(RequestParams params, String lookupKey) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#x0", "args.x0");
+        names.put("#x1", "args.x1");
+        names.put("#y0", "args.y0");
+        names.put("#y1", "args.y1");
+
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":key", new AttributeValue().withS(lookupKey));
+        addInterval(values, ":x0", params.x0);
+        addInterval(values, ":x1", params.x1);
+        addInterval(values, ":y0", params.y0);
+        addInterval(values, ":y1", params.y1);
+
+        return new QueryRequest(METRICS_TABLE_NAME).withIndexName(LOOKUP_INDEX_NAME)
+                .withKeyConditionExpression("lookupKey = :key AND #x1 BETWEEN :x1Min AND :x1Max")
+                .withFilterExpression("#x0 BETWEEN :x0Min AND :x0Max AND #y0 BETWEEN :y0Min AND :y0Max"
+                        + " AND #y1 BETWEEN :y1Min AND :y1Max")
+                .withProjectionExpression("methodCount")
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+    }
+
+    /**
+     * Adds the bounds of the interval for a variable, (name)Min and (name)Max.
+     * @param values the current map of expression values
+     * @param name the name of the variable in the expressions
      * @param value the middle point of the interval
      */
-    private static void addIntervalCondition(HashMap<String, Condition> filter, String arg, long value) {
-        Condition between = new Condition().withComparisonOperator(ComparisonOperator.BETWEEN.toString())
-                .withAttributeValueList(
-                        new AttributeValue().withN(Long.toString(value - RequestParams.POSITION_THRESHOLD)),
-                        new AttributeValue().withN(Long.toString(value + RequestParams.POSITION_THRESHOLD)));
-        filter.put(arg, between);
+    private static void addInterval(Map<String, AttributeValue> values, String name, long value) {
+        values.put(name + "Min", new AttributeValue().withN(Long.toString(value - RequestParams.POSITION_THRESHOLD)));
+        values.put(name + "Max", new AttributeValue().withN(Long.toString(value + RequestParams.POSITION_THRESHOLD)));
+    }
+
+    private static String lookupKey(String strategy, String imagePath, long x0Bucket, long y0Bucket) {
+        return strategy + "#" + imagePath + "#" + x0Bucket + "#" + y0Bucket;
+    }
+
+    private static long bucket(long position) {
+        return Math.floorDiv(position, LOOKUP_BUCKET_SIZE);
     }
 
 }
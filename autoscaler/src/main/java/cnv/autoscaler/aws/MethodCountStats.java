@@ -0,0 +1,57 @@
+package cnv.autoscaler.aws;
+
+import cnv.autoscaler.loadbalancer.RequestParams;
+
+/**
+ * Statistics of the method counts of a set of (similar) requests
+ */
+public class MethodCountStats {
+    private static final int CELL_SIZE = 32; // must match the web servers' (MetricUploader.STATS_BUCKET_SIZE)
+
+    private final long count;
+    private final double sum;
+    private final double sumOfSquares;
+    private final double max;
+
+    public MethodCountStats(long count, double sum, double sumOfSquares, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.sumOfSquares = sumOfSquares;
+        this.max = max;
+    }
+
+    /**
+     * @return the cell the statistics of a request's similar ones are kept in: its strategy, image and CELL_SIZE-wide
+     * bucket of each position
+     */
+    public static String cellOf(RequestParams params) {
+        return params.algo + "#datasets/" + params.imagePath
+                + "#" + Math.floorDiv(params.x0, CELL_SIZE) + "#" + Math.floorDiv(params.x1, CELL_SIZE)
+                + "#" + Math.floorDiv(params.y0, CELL_SIZE) + "#" + Math.floorDiv(params.y1, CELL_SIZE);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean() {
+        return sum / count;
+    }
+
+    /**
+     * @return the (population) variance, 0 for a single request
+     */
+    public double variance() {
+        double mean = mean();
+        // may come out slightly negative from rounding
+        return Math.max(sumOfSquares / count - mean * mean, 0);
+    }
+
+    public double standardDeviation() {
+        return Math.sqrt(variance());
+    }
+
+    public double max() {
+        return max;
+    }
+}
@@ -0,0 +1,391 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import cnv.autoscaler.Instance;
+import cnv.autoscaler.InstanceRegistry;
+import cnv.autoscaler.autoscaler.AutoScaler;
+
+/**
+ * Admission control for forwarded requests, enabled with -Dlb.admission=true (otherwise every request is admitted
+ * right away, as before).
+ *
+ * A request is started on the instance picked by the strategy (so its load already steers the next picks away from
+ * that instance), but it is only forwarded once the instance has room for it: at most INSTANCE_CAPACITY of estimated
+ * load runs on each instance, the rest waits in a bounded per-instance queue. When a request ends, the queue releases
+ * the waiting requests in shortest-estimated-job-first order, with aging: a request that waited the whole deadline
+ * goes before fresh ones up to INSTANCE_CAPACITY longer, so long jobs are not starved.
+ *
+ * INSTANCE_CAPACITY defaults to a multiple of the load the autoscaler scales up at (AutoScaler.MAX_INSTANCE_LOAD):
+ * instances must be let past that load for the autoscaler to see it, but not so far past it that requests pile up on
+ * them instead of waiting for the new instances.
+ *
+ * Requests that would not be forwarded within QUEUE_DEADLINE are rejected (503 with Retry-After) instead of piling up
+ * while the autoscaler catches up: right away when the queue is full or its predicted wait (from the load each
+ * instance has been getting through) is too long, or when they reach the deadline while waiting.
+ *
+ * Thread-safety: each instance's queue is guarded by its own lock; tickets are completed outside of it.
+ */
+public class AdmissionController {
+    private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+
+    private static final int INSTANCE_CAPACITY_FACTOR = 5; // times AutoScaler.MAX_INSTANCE_LOAD
+    private static final long INSTANCE_CAPACITY = Long.getLong("lb.instanceCapacity",
+        INSTANCE_CAPACITY_FACTOR * AutoScaler.MAX_INSTANCE_LOAD);
+    static final long QUEUE_DEADLINE = Long.getLong("lb.queueDeadlineMs", 30 * 1000L); // ms
+    private static final int MAX_QUEUED_REQUESTS = Integer.getInteger("lb.maxQueuedRequests", 64); // per instance
+    private static final long SWEEP_PERIOD = 250; // ms
+    private static final long DRAIN_RATE_WINDOW = 1000; // ms
+    private static final double DRAIN_RATE_WEIGHT = 0.3; // of the newest window
+
+    private final InstanceRegistry registry;
+    private final boolean enabled;
+    private final Map<Instance, InstanceQueue> queues = new ConcurrentHashMap<>();
+    private final long epoch = nowMillis();
+
+    public AdmissionController(InstanceRegistry registry) {
+        this.registry = registry;
+        this.enabled = Boolean.getBoolean("lb.admission");
+
+        if (enabled) {
+            // expires waiting requests, and hands those of instances that went away back to their callers
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "AdmissionController sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queues a request started on an instance, to be forwarded once that instance has room for it.
+     * @param request the request, as returned by LBStrategy.startRequest
+     * @return the request's ticket, which may already be admitted (or rejected)
+     */
+    public Ticket enqueue(Request request) {
+        Ticket ticket = new Ticket(request);
+        if (!enabled) {
+            ticket.admitted.complete(null);
+            return ticket;
+        }
+
+        InstanceQueue queue = queues.computeIfAbsent(request.getInstance(), instance -> new InstanceQueue());
+        boolean admitted = false;
+        RejectedException rejection = null;
+        synchronized (queue) {
+            if (queue.waiting.isEmpty() && queue.fits(ticket)) {
+                queue.admit(ticket);
+                admitted = true;
+            } else if (queue.waiting.size() >= MAX_QUEUED_REQUESTS) {
+                rejection = new RejectedException("queue is full", queue.retryAfterSeconds());
+            } else {
+                long predictedWait = queue.predictedWait(ticket);
+                if (predictedWait > QUEUE_DEADLINE) {
+                    rejection = new RejectedException(String.format("predicted wait of %d ms", predictedWait),
+                            queue.retryAfterSeconds());
+                } else {
+                    queue.enqueue(ticket);
+                }
+            }
+        }
+
+        if (admitted) {
+            ticket.admitted.complete(null);
+        } else if (rejection != null) {
+            ticket.admitted.completeExceptionally(rejection);
+        }
+        return ticket;
+    }
+
+    /**
+     * Admits a request right away, still accounting for its load. For retries, which already waited their turn.
+     * @param request the request, as returned by LBStrategy.startRequest
+     * @return the request's ticket, already admitted
+     */
+    public Ticket admitNow(Request request) {
+        Ticket ticket = new Ticket(request);
+        if (enabled) {
+            InstanceQueue queue = queues.computeIfAbsent(request.getInstance(), instance -> new InstanceQueue());
+            synchronized (queue) {
+                queue.admit(ticket);
+            }
+        }
+
+        ticket.admitted.complete(null);
+        return ticket;
+    }
+
+    /**
+     * Releases a ticket once its request ended (or was given up on), letting the next waiting requests in.
+     * Calling it more than once for the same ticket has no effect.
+     * @param ticket the ticket
+     */
+    public void finished(Ticket ticket) {
+        if (!enabled) {
+            return;
+        }
+
+        InstanceQueue queue = queues.get(ticket.request.getInstance());
+        if (queue == null) {
+            return;
+        }
+
+        List<Ticket> admitted;
+        synchronized (queue) {
+            if (ticket.state == TicketState.RUNNING) {
+                queue.runningLoad -= ticket.estimate;
+                queue.runningCount--;
+                queue.completedLoad += ticket.estimate;
+                queue.updateDrainRate();
+            } else if (ticket.state == TicketState.WAITING) {
+                queue.remove(ticket);
+            }
+            ticket.state = TicketState.DONE;
+
+            admitted = queue.dispatch();
+        }
+
+        for (Ticket next : admitted) {
+            next.admitted.complete(null);
+        }
+    }
+
+    private void sweep() {
+        long now = nowMillis();
+        for (Map.Entry<Instance, InstanceQueue> entry : queues.entrySet()) {
+            Instance instance = entry.getKey();
+            InstanceQueue queue = entry.getValue();
+            boolean gone = registry.get(instance.id()) != instance;
+
+            List<Ticket> admitted;
+            List<Ticket> expired = new ArrayList<>();
+            long retryAfter;
+            synchronized (queue) {
+                Iterator<Ticket> it = queue.waiting.iterator();
+                while (it.hasNext()) {
+                    Ticket ticket = it.next();
+                    if (gone || now - ticket.enqueuedAt >= QUEUE_DEADLINE) {
+                        it.remove();
+                        queue.queuedLoad -= ticket.estimate;
+                        ticket.state = TicketState.DONE;
+                        expired.add(ticket);
+                    }
+                }
+                admitted = queue.dispatch();
+                retryAfter = queue.retryAfterSeconds();
+
+                if (gone && queue.runningCount == 0) {
+                    queues.remove(instance, queue);
+                }
+            }
+
+            for (Ticket ticket : admitted) {
+                ticket.admitted.complete(null);
+            }
+            for (Ticket ticket : expired) {
+                ticket.admitted.completeExceptionally(gone
+                        ? new InstanceUnavailableException("instance " + instance.id() + " is no longer ready")
+                        : new RejectedException("waited " + QUEUE_DEADLINE + " ms", retryAfter));
+            }
+        }
+    }
+
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private enum TicketState { WAITING, RUNNING, DONE }
+
+    /**
+     * A request's place in its instance's queue
+     */
+    public class Ticket {
+        private final Request request;
+        private final long estimate;
+        private final long enqueuedAt = nowMillis();
+        /** release order: the estimate, minus the aging (the load equivalent of the time waited) */
+        private final long key;
+        private final CompletableFuture<Void> admitted = new CompletableFuture<>();
+        private TicketState state = TicketState.WAITING; // guarded by the queue's lock
+
+        private Ticket(Request request) {
+            this.request = request;
+            this.estimate = request.loadEstimate();
+            this.key = estimate + (enqueuedAt - epoch) * INSTANCE_CAPACITY / QUEUE_DEADLINE;
+        }
+
+        /**
+         * Completed once the request may be forwarded, or exceptionally with a RejectedException (answer 503) or an
+         * InstanceUnavailableException (try another instance)
+         */
+        public CompletableFuture<Void> admitted() {
+            return admitted;
+        }
+
+        /**
+         * Waits until the request may be forwarded.
+         * @throws RejectedException if the request should be answered with 503
+         * @throws InstanceUnavailableException if the instance went away while the request waited
+         */
+        public void await() throws RejectedException, InstanceUnavailableException {
+            try {
+                admitted.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RejectedException) {
+                    throw (RejectedException) e.getCause();
+                }
+                throw (InstanceUnavailableException) e.getCause();
+            } catch (InterruptedException e) {
+                // the caller gives up on the request, but whoever interrupted it must still see the interrupt
+                Thread.currentThread().interrupt();
+                throw new InstanceUnavailableException("interrupted while waiting");
+            }
+        }
+    }
+
+    /**
+     * The requests running and waiting on one instance
+     */
+    private class InstanceQueue {
+        private final PriorityQueue<Ticket> waiting = new PriorityQueue<>(Comparator.comparingLong(t -> t.key));
+        private long queuedLoad = 0;
+        private long runningLoad = 0;
+        private int runningCount = 0;
+
+        /** estimated load this instance gets through per ms (0 until measured) */
+        private double drainRate = 0;
+        private long completedLoad = 0;
+        private long windowStart = nowMillis();
+
+        /**
+         * An instance always runs at least one request, however large
+         */
+        boolean fits(Ticket ticket) {
+            return runningCount == 0 || runningLoad + ticket.estimate <= INSTANCE_CAPACITY;
+        }
+
+        void admit(Ticket ticket) {
+            if (runningCount == 0) {
+                // measure the drain rate while busy only
+                windowStart = nowMillis();
+                completedLoad = 0;
+            }
+            runningLoad += ticket.estimate;
+            runningCount++;
+            ticket.state = TicketState.RUNNING;
+        }
+
+        void enqueue(Ticket ticket) {
+            waiting.add(ticket);
+            queuedLoad += ticket.estimate;
+        }
+
+        void remove(Ticket ticket) {
+            if (waiting.remove(ticket)) {
+                queuedLoad -= ticket.estimate;
+            }
+        }
+
+        /**
+         * @return the tickets admitted now that there may be room, to be completed outside the lock
+         */
+        List<Ticket> dispatch() {
+            List<Ticket> admitted = new ArrayList<>();
+            while (!waiting.isEmpty() && fits(waiting.peek())) {
+                Ticket ticket = waiting.poll();
+                queuedLoad -= ticket.estimate;
+                admit(ticket);
+                admitted.add(ticket);
+            }
+            return admitted;
+        }
+
+        /**
+         * @return how long the ticket would wait, in ms: the load before it that does not fit yet over the drain rate
+         * (0 if the drain rate is not known yet, then only the queue length limits it)
+         */
+        long predictedWait(Ticket ticket) {
+            if (drainRate <= 0) {
+                return 0;
+            }
+
+            long loadAhead = 0;
+            for (Ticket other : waiting) {
+                if (other.key <= ticket.key) {
+                    loadAhead += other.estimate;
+                }
+            }
+            long excess = runningLoad + loadAhead + ticket.estimate - INSTANCE_CAPACITY;
+            return Math.round(Math.max(excess, 0) / drainRate);
+        }
+
+        /**
+         * @return when a rejected client should try again, in seconds: about when the current backlog is through
+         */
+        long retryAfterSeconds() {
+            long backlogMillis = drainRate > 0
+                    ? Math.round(Math.max(runningLoad + queuedLoad - INSTANCE_CAPACITY, 0) / drainRate)
+                    : QUEUE_DEADLINE;
+            return Math.max(1, Math.min(TimeUnit.MILLISECONDS.toSeconds(backlogMillis), TimeUnit.MILLISECONDS.toSeconds(QUEUE_DEADLINE)));
+        }
+
+        void updateDrainRate() {
+            long now = nowMillis();
+            long elapsed = now - windowStart;
+            if (elapsed < DRAIN_RATE_WINDOW) {
+                return;
+            }
+
+            double windowRate = (double) completedLoad / elapsed;
+            drainRate = drainRate <= 0 ? windowRate : (1 - DRAIN_RATE_WEIGHT) * drainRate + DRAIN_RATE_WEIGHT * windowRate;
+            completedLoad = 0;
+            windowStart = now;
+            logger.fine(String.format("Drain rate updated to %.0f load/ms", drainRate));
+        }
+    }
+
+    /**
+     * The load balancer is overloaded: the request should be answered with 503 Service Unavailable
+     */
+    public static class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        public RejectedException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return the value for the Retry-After header
+         */
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * The instance a request waited for went away: the request should be retried elsewhere
+     */
+    public static class InstanceUnavailableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InstanceUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,666 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.BasicEntityDetails;
+import org.apache.hc.core5.http.impl.bootstrap.AsyncServerBootstrap;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerExchangeHandler;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.ResponseChannel;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import cnv.autoscaler.Instance;
+
+/**
+ * Non-blocking /scan front end: an NIO server (httpcore5) that forwards requests with the async httpclient5 client,
+ * so that a few event-loop threads handle any number of long-running scans instead of one parked thread each.
+ *
+ * Instances are picked by the given LBStrategy, and requests behave as in LBStrategy.handle: they are retried on
+ * another instance (up to MAX_ATTEMPTS) until the response headers arrive, and from then on the body is streamed to
+ * the client with backpressure, through a fixed-size buffer per exchange. Identical requests may instead get the
+ * response of the one forwarded (see ResponseCoalescer).
+ */
+public class AsyncScanProxy {
+    private static final Logger logger = Logger.getLogger(AsyncScanProxy.class.getName());
+
+    private static final int IO_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // each running scan holds a connection, but no thread: these only bound the number of sockets
+    private static final int MAX_CONNECTIONS_PER_INSTANCE = 1024;
+    private static final int MAX_CONNECTIONS = 16 * 1024;
+    private static final TimeValue IDLE_CONNECTION_TIMEOUT = TimeValue.ofSeconds(30);
+    private static final Timeout CLIENT_IDLE_TIMEOUT = Timeout.ofMinutes(5); // longer than any scan
+    private static final Timeout CONNECTION_REQUEST_TIMEOUT = Timeout.ofMinutes(5);
+
+    private final LBStrategy strategy;
+    private final InetSocketAddress bindAddress;
+    private final HttpAsyncServer server;
+    private final CloseableHttpAsyncClient client;
+
+    /**
+     * Picks instances and schedules retries, so the event loops never wait on the strategy
+     */
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "AsyncScanProxy scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ListenerEndpoint endpoint;
+
+    public AsyncScanProxy(LBStrategy strategy, String address, int port) {
+        this.strategy = strategy;
+        this.bindAddress = new InetSocketAddress(address, port);
+
+        this.server = AsyncServerBootstrap.bootstrap()
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(IO_THREADS)
+                        .setSoTimeout(CLIENT_IDLE_TIMEOUT)
+                        .setTcpNoDelay(true)
+                        .build())
+                .register("/scan", ScanExchange::new)
+                .create();
+
+        this.client = HttpAsyncClients.custom()
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(IO_THREADS)
+                        .setTcpNoDelay(true)
+                        .build())
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnPerRoute(MAX_CONNECTIONS_PER_INSTANCE)
+                        .setMaxConnTotal(MAX_CONNECTIONS)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        // a DISABLED lease timeout makes the async pool fail leases that have to wait
+                        .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+                        .setResponseTimeout(Timeout.DISABLED)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT)
+                .build();
+    }
+
+    public void start() throws IOException {
+        client.start();
+        server.start();
+
+        try {
+            endpoint = server.listen(bindAddress, URIScheme.HTTP).get();
+        } catch (InterruptedException | ExecutionException e) {
+            server.close(CloseMode.IMMEDIATE);
+            client.close(CloseMode.IMMEDIATE);
+            throw new IOException("Could not listen on " + bindAddress, e);
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) endpoint.getAddress();
+    }
+
+    /**
+     * One client request to /scan. Server-side callbacks (handleRequest, available, produce, failed) run on the
+     * server's event loops, the Attempt callbacks on the client's, and attempts are started from the scheduler.
+     * Thread-safety: the shared state is guarded by this object's lock, which is never held while calling into the
+     * instance-side channels from the client side or vice-versa (that side may be calling us with its own lock held).
+     */
+    private class ScanExchange implements AsyncServerExchangeHandler {
+        private ResponseChannel responseChannel;
+        private HttpContext context;
+        private String queryString;
+        private final UUID requestId = UUID.randomUUID();
+        private final HashSet<Instance> suspectedBadInstances = new HashSet<>();
+        private int attempts = 0;
+        private volatile ResponseCoalescer.Flight flight;
+
+        /** response body received from the instance but not yet sent to the client (write mode) */
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private CapacityChannel instanceCapacity = null;
+        private DataStreamChannel clientChannel = null;
+        private Attempt currentAttempt = null;
+        private boolean committed = false;
+        private boolean instanceDone = false;
+        private boolean instanceFailed = false;
+        private boolean clientGone = false;
+        private boolean responseEnded = false;
+
+        @Override
+        public void handleRequest(HttpRequest request, EntityDetails entityDetails, ResponseChannel responseChannel,
+                HttpContext context) {
+            this.responseChannel = responseChannel;
+            this.context = context;
+
+            String path = request.getPath();
+            int queryStart = path.indexOf('?');
+            this.queryString = queryStart >= 0 ? path.substring(queryStart + 1) : "";
+            logger.info(String.format("Request %s received. Query: %s", requestId, queryString));
+
+            flight = strategy.coalescer.join(queryString);
+            if (flight.isLeader()) {
+                scheduler.execute(this::nextAttempt);
+                return;
+            }
+
+            // whichever comes first, the response or the end of the wait, decides how this request is answered
+            final AtomicBoolean settled = new AtomicBoolean(false);
+            final ResponseCoalescer.Flight followed = flight;
+            scheduleWaitEnd(followed, settled);
+            followed.response().whenCompleteAsync((shared, e) -> {
+                if (!settled.compareAndSet(false, true)) {
+                    return;
+                }
+                if (shared != null) {
+                    sendShared(shared);
+                } else {
+                    forwardAlone();
+                }
+            }, scheduler);
+        }
+
+        /**
+         * Forwards the request on its own once it waited long enough for the flight's response, rechecking as long
+         * as the leader makes progress (see ResponseCoalescer.MAX_WAIT)
+         */
+        private void scheduleWaitEnd(ResponseCoalescer.Flight followed, AtomicBoolean settled) {
+            long wait = followed.remainingWait();
+            if (wait > 0) {
+                scheduler.schedule(() -> {
+                    if (!settled.get()) {
+                        scheduleWaitEnd(followed, settled);
+                    }
+                }, wait, TimeUnit.MILLISECONDS);
+            } else if (settled.compareAndSet(false, true)) {
+                forwardAlone();
+            }
+        }
+
+        /**
+         * Forwards the request on its own, as the identical request could not share its response (in time)
+         */
+        private void forwardAlone() {
+            flight = strategy.coalescer.alone();
+            nextAttempt();
+        }
+
+        /**
+         * Answers with the (copy of the) response of an identical request, under this request's id, produced from the
+         * buffer as if the instance had sent it
+         */
+        private void sendShared(ResponseCoalescer.SharedResponse shared) {
+            BasicHttpResponse response = new BasicHttpResponse(shared.statusCode());
+            for (String[] header : shared.headers()) {
+                response.addHeader(header[0], header[1]);
+            }
+            response.addHeader(LBStrategy.X_REQUEST_ID_HEADER, requestId.toString());
+
+            byte[] body = shared.body();
+            if (body.length == 0) {
+                sendResponse(response);
+                return;
+            }
+
+            synchronized (this) {
+                if (clientGone) {
+                    return;
+                }
+                buffer = ByteBuffer.allocate(Math.max(body.length, BUFFER_SIZE));
+                buffer.put(body);
+                committed = true;
+                instanceDone = true;
+            }
+
+            String contentType = shared.header("Content-Type");
+            try {
+                responseChannel.sendResponse(response,
+                        new BasicEntityDetails(body.length, contentType != null ? ContentType.parse(contentType) : null),
+                        context);
+                logger.info("Request " + requestId + " answered with the response of an identical request");
+            } catch (HttpException | IOException e) {
+                logger.warning(String.format("Could not answer request %s: %s", requestId, e.getMessage()));
+            }
+        }
+
+        /**
+         * Starts the next attempt at answering the request, or answers 502 if there are none left
+         */
+        private void nextAttempt() {
+            synchronized (this) {
+                if (clientGone) {
+                    return;
+                }
+                attempts++;
+            }
+
+            if (attempts > LBStrategy.MAX_ATTEMPTS) {
+                logger.severe(String.format("Request %s could not be answered after %d attempts", requestId, LBStrategy.MAX_ATTEMPTS));
+                sendError(HttpStatus.SC_BAD_GATEWAY);
+                return;
+            }
+
+            if (strategy.registry.size() == suspectedBadInstances.size() && suspectedBadInstances.containsAll(strategy.registry.readyInstances())) {
+                // we suspect everyone: give the system some time to have healthy instances again and start fresh
+                // (without blocking a thread in the meantime)
+                suspectedBadInstances.clear();
+                scheduler.schedule(this::startAttempt, LBStrategy.ALL_SUSPECTED_WAIT_TIME, TimeUnit.MILLISECONDS);
+            } else {
+                startAttempt();
+            }
+        }
+
+        private void startAttempt() {
+            Request request;
+            try {
+                request = strategy.startRequest(queryString, requestId, suspectedBadInstances);
+            } catch (RuntimeException e) {
+                // e.g. no instances at all
+                logger.warning(String.format("Could not pick an instance for request %s: %s", requestId, e.getMessage()));
+                scheduler.schedule(this::nextAttempt, LBStrategy.ALL_SUSPECTED_WAIT_TIME, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            // the first attempt waits for the instance to admit it, retries already waited their turn
+            boolean firstAttempt;
+            synchronized (this) {
+                firstAttempt = attempts == 1;
+            }
+            Attempt attempt = new Attempt(request,
+                    firstAttempt ? strategy.admission.enqueue(request) : strategy.admission.admitNow(request));
+            synchronized (this) {
+                currentAttempt = attempt;
+            }
+            attempt.ticket.admitted().whenComplete((ignored, e) -> scheduler.execute(() -> forward(attempt, e)));
+        }
+
+        /**
+         * Sends an attempt's request to its instance once admitted
+         * @param admissionError why the attempt was not admitted, null if it was
+         */
+        private void forward(Attempt attempt, Throwable admissionError) {
+            Request request = attempt.request;
+            if (admissionError instanceof AdmissionController.RejectedException) {
+                attempt.finish();
+                logger.warning(String.format("Request %s rejected: %s", requestId, admissionError.getMessage()));
+                sendRejection(((AdmissionController.RejectedException) admissionError).getRetryAfterSeconds());
+                return;
+            } else if (admissionError != null) {
+                // the instance went away while the request waited for it
+                attempt.finish();
+                logger.warning(String.format("Request %s could not wait for its instance: %s", requestId, admissionError.getMessage()));
+                nextAttempt();
+                return;
+            }
+
+            synchronized (this) {
+                if (clientGone) {
+                    attempt.finish();
+                    return;
+                }
+            }
+            logger.info(String.format("Request %s running on instance %s", request.getId().toString(), request.getInstance().id()));
+
+            HttpRequest innerRequest = new BasicHttpRequest(Method.GET,
+                    URI.create(request.getInstance().getBaseUri() + "/scan?" + queryString));
+            innerRequest.addHeader(LBStrategy.X_REQUEST_ID_HEADER, request.getId().toString());
+            attempt.future = client.execute(new BasicRequestProducer(innerRequest, null), attempt,
+                    new FutureCallback<Void>() {
+                        @Override
+                        public void completed(Void result) {
+                            attempt.finish();
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            attempt.attemptFailed(e);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            // only the client going away cancels attempts
+                            attempt.finish();
+                        }
+                    });
+        }
+
+        private void sendError(int statusCode) {
+            sendResponse(new BasicHttpResponse(statusCode));
+        }
+
+        /**
+         * Answers 503 Service Unavailable, telling the client when to try again
+         */
+        private void sendRejection(long retryAfterSeconds) {
+            BasicHttpResponse response = new BasicHttpResponse(HttpStatus.SC_SERVICE_UNAVAILABLE);
+            response.addHeader(LBStrategy.RETRY_AFTER_HEADER, Long.toString(retryAfterSeconds));
+            sendResponse(response);
+        }
+
+        private void sendResponse(BasicHttpResponse response) {
+            synchronized (this) {
+                responseEnded = true;
+            }
+            try {
+                responseChannel.sendResponse(response, null, context);
+            } catch (HttpException | IOException e) {
+                logger.warning(String.format("Could not answer request %s: %s", requestId, e.getMessage()));
+            }
+        }
+
+        // the client's request body (there should be none) is discarded
+
+        @Override
+        public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+            capacityChannel.update(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void consume(ByteBuffer src) {
+            src.position(src.limit());
+        }
+
+        @Override
+        public void streamEnd(List<? extends Header> trailers) {
+        }
+
+        // the response body is produced from what the instance sent
+
+        @Override
+        public synchronized int available() {
+            if (responseEnded) {
+                return 0;
+            } else if (buffer.position() > 0) {
+                return buffer.position();
+            }
+            return instanceDone || instanceFailed ? 1 : 0;
+        }
+
+        @Override
+        public void produce(DataStreamChannel channel) throws IOException {
+            int written;
+            boolean end;
+            CapacityChannel capacity;
+            synchronized (this) {
+                clientChannel = channel;
+                if (responseEnded) {
+                    return;
+                } else if (instanceFailed) {
+                    // headers are already out, cutting the connection is the only way to tell the client
+                    throw new IOException("Instance failed while sending the response");
+                }
+
+                // a length-delimited encoder completes on its last byte, after which even an empty write fails
+                written = 0;
+                if (buffer.position() > 0) {
+                    buffer.flip();
+                    written = channel.write(buffer);
+                    buffer.compact();
+                }
+
+                end = instanceDone && buffer.position() == 0;
+                responseEnded = end;
+                capacity = instanceCapacity;
+            }
+
+            if (end) {
+                channel.endStream(null);
+                logger.info("Request " + requestId + " answered");
+            } else if (written > 0 && capacity != null) {
+                // let the instance send as much as was freed
+                capacity.update(written);
+            }
+        }
+
+        @Override
+        public void failed(Exception cause) {
+            Attempt attempt;
+            synchronized (this) {
+                if (responseEnded) {
+                    return; // the client just closed the connection after its response
+                }
+                clientGone = true;
+                attempt = currentAttempt;
+            }
+
+            logger.warning(String.format("Client of request %s went away: %s", requestId, cause.getMessage()));
+            flight.abandon();
+            if (attempt != null && attempt.future != null) {
+                attempt.future.cancel(true);
+            } else if (attempt != null) {
+                // still waiting to be admitted: give up its place
+                attempt.finish();
+            }
+        }
+
+        @Override
+        public void releaseResources() {
+            ResponseCoalescer.Flight currentFlight = flight;
+            if (currentFlight != null) {
+                // unless its response was shared, the identical requests waiting are forwarded on their own
+                currentFlight.abandon();
+            }
+
+            Attempt attempt;
+            synchronized (this) {
+                attempt = currentAttempt;
+            }
+            if (attempt != null && attempt.future != null && !attempt.future.isDone()) {
+                attempt.future.cancel(true);
+            }
+        }
+
+        /**
+         * One attempt at getting the response from an instance: consumes its response and handles the outcome.
+         */
+        private class Attempt implements AsyncResponseConsumer<Void> {
+            private final Request request;
+            private final AdmissionController.Ticket ticket;
+            private final AtomicBoolean finished = new AtomicBoolean(false);
+            private Optional<Long> methodCount = Optional.empty();
+            private FutureCallback<Void> resultCallback;
+            Future<Void> future;
+
+            Attempt(Request request, AdmissionController.Ticket ticket) {
+                this.request = request;
+                this.ticket = ticket;
+            }
+
+            @Override
+            public void consumeResponse(HttpResponse response, EntityDetails entityDetails, HttpContext ctx,
+                    FutureCallback<Void> resultCallback) throws HttpException, IOException {
+                if (response.getCode() >= 500) {
+                    throw new HttpException("Error in server that handled the request (statusCode >= 500)");
+                }
+
+                BasicHttpResponse clientResponse = new BasicHttpResponse(response.getCode());
+                flight.startCapture(response.getCode());
+                for (Header header : response.getHeaders()) {
+                    final String headerName = header.getName();
+
+                    if (headerName.equalsIgnoreCase(LBStrategy.X_METHOD_COUNT_HEADER)) {
+                        try {
+                            methodCount = Optional.of(header.getValue()).map(Long::parseLong);
+                        } catch (NullPointerException | NumberFormatException ignored) {}
+                    } else if (!LBStrategy.HOP_BY_HOP_HEADERS.contains(headerName.toLowerCase())) {
+                        clientResponse.addHeader(headerName, header.getValue());
+                        flight.captureHeader(headerName, header.getValue());
+                    }
+                }
+
+                this.resultCallback = resultCallback;
+                synchronized (ScanExchange.this) {
+                    if (clientGone) {
+                        throw new IOException("Client went away");
+                    }
+                    // commit: from here on the client has seen the response, so there is no retrying
+                    committed = true;
+                    instanceDone = entityDetails == null;
+                }
+
+                if (entityDetails == null) {
+                    flight.complete();
+                }
+                try {
+                    responseChannel.sendResponse(clientResponse, entityDetails, context);
+                } catch (IOException e) {
+                    synchronized (ScanExchange.this) {
+                        clientGone = true; // so the attempt failing is not blamed on the instance
+                    }
+                    throw e;
+                }
+                if (entityDetails == null) {
+                    resultCallback.completed(null);
+                }
+            }
+
+            @Override
+            public void informationResponse(HttpResponse response, HttpContext ctx) {
+            }
+
+            /**
+             * Captures the body bytes about to be consumed, for the flight
+             */
+            private void capture(ByteBuffer src) {
+                if (src.hasArray()) {
+                    flight.captureBody(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                } else {
+                    byte[] bytes = new byte[src.remaining()];
+                    src.duplicate().get(bytes);
+                    flight.captureBody(bytes, 0, bytes.length);
+                }
+            }
+
+            @Override
+            public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+                int capacity;
+                synchronized (ScanExchange.this) {
+                    instanceCapacity = capacityChannel;
+                    capacity = buffer.remaining();
+                }
+                capacityChannel.update(capacity);
+            }
+
+            @Override
+            public void consume(ByteBuffer src) {
+                capture(src);
+
+                DataStreamChannel channel;
+                synchronized (ScanExchange.this) {
+                    if (src.remaining() > buffer.remaining()) {
+                        // more than the granted capacity: should not happen, but never drop response bytes
+                        ByteBuffer larger = ByteBuffer.allocate(buffer.position() + src.remaining());
+                        buffer.flip();
+                        larger.put(buffer);
+                        buffer = larger;
+                    }
+                    buffer.put(src);
+                    channel = clientChannel;
+                }
+
+                if (channel != null) {
+                    channel.requestOutput();
+                }
+            }
+
+            @Override
+            public void streamEnd(List<? extends Header> trailers) {
+                // shared before the client's response ends, which abandons the flight
+                flight.complete();
+
+                DataStreamChannel channel;
+                synchronized (ScanExchange.this) {
+                    instanceDone = true;
+                    channel = clientChannel;
+                }
+
+                if (channel != null) {
+                    channel.requestOutput();
+                }
+                resultCallback.completed(null);
+            }
+
+            @Override
+            public void failed(Exception cause) {
+                // reported to the execute callback as well, which handles it
+            }
+
+            @Override
+            public void releaseResources() {
+            }
+
+            /**
+             * The attempt failed: retry it if the client hasn't seen the response yet, otherwise abort the response.
+             */
+            void attemptFailed(Exception e) {
+                finish();
+
+                boolean retry;
+                DataStreamChannel channel;
+                synchronized (ScanExchange.this) {
+                    if (clientGone) {
+                        return; // not the instance's fault
+                    }
+                    retry = !committed;
+                    instanceFailed = committed;
+                    channel = clientChannel;
+                }
+
+                logger.warning(String.format("Failed attempt at answering request %s: %s", requestId, e.getMessage()));
+                suspectedBadInstances.add(request.getInstance());
+                strategy.registry.suspectInstanceBad(request.getInstance());
+
+                if (retry) {
+                    scheduler.execute(ScanExchange.this::nextAttempt);
+                } else if (channel != null) {
+                    channel.requestOutput();
+                }
+            }
+
+            /**
+             * Ends the request on the instance (once per attempt)
+             */
+            void finish() {
+                if (finished.compareAndSet(false, true)) {
+                    request.finished(methodCount);
+                    strategy.admission.finished(ticket);
+                }
+            }
+        }
+    }
+}
@@ -3,11 +3,15 @@ package cnv.autoscaler.loadbalancer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import com.sun.net.httpserver.Headers;
@@ -16,11 +20,9 @@ import com.sun.net.httpserver.HttpHandler;
 
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.Header;
-import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.util.Timeout;
 
 import cnv.autoscaler.Instance;
@@ -33,17 +35,44 @@ import cnv.autoscaler.InstanceRegistry;
 public abstract class LBStrategy implements HttpHandler {
     private Logger logger = Logger.getLogger(LBStrategy.class.getName());
     protected InstanceRegistry registry;
+    final AdmissionController admission;
+    final ResponseCoalescer coalescer;
+
+    static final String X_REQUEST_ID_HEADER = "X-LB-Request-ID";
+    static final String X_METHOD_COUNT_HEADER = "X-Method-Count";
+    static final String X_INSTRUCTION_COUNT_HEADER = "X-Instruction-Count";
+    static final int MAX_ATTEMPTS = 5;
+    static final int ALL_SUSPECTED_WAIT_TIME = 10 * 1000; // ms
+    static final String RETRY_AFTER_HEADER = "Retry-After";
+    private static final RequestConfig INNER_REQUEST_CONFIG = RequestConfig.custom()
+        .setConnectionRequestTimeout(Timeout.DISABLED)
+        .setResponseTimeout(Timeout.DISABLED)
+        .build();
 
-    private static final String X_REQUEST_ID_HEADER = "X-LB-Request-ID";
-    private static final String X_METHOD_COUNT_HEADER = "X-Method-Count";
-    private static final int MAX_ATTEMPTS = 5;
+    /**
+     * Headers about the backend connection that the client-facing server sets on its own
+     */
+    static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList(
+        "content-length", "transfer-encoding", "connection", "keep-alive"));
+
+    private static final int RELAY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_RELAY_BUFFERS = 256; // 16 MiB
+    // pooled request threads each keep their own buffer; virtual threads don't outlive their request, so they share
+    // a bounded pool instead
+    private static final ThreadLocal<byte[]> relayBuffer = ThreadLocal.withInitial(() -> new byte[RELAY_BUFFER_SIZE]);
+    private static final RelayBufferPool relayBufferPool = Boolean.getBoolean("lb.virtualThreads")
+        ? new RelayBufferPool(RELAY_BUFFER_SIZE, MAX_POOLED_RELAY_BUFFERS)
+        : null;
 
     protected LBStrategy(InstanceRegistry registry) {
         this.registry = registry;
+        this.admission = new AdmissionController(registry);
+        this.coalescer = new ResponseCoalescer();
     }
 
     /**
      * Receives a request, parses it and (tries to) redirects it to an instance
+     * Identical requests may instead get the response of the one forwarded (see ResponseCoalescer)
      * @param t
      * @throws IOException
      */
@@ -53,16 +82,33 @@ public abstract class LBStrategy implements HttpHandler {
         final String queryString = t.getRequestURI().getQuery();
         logger.info(String.format("Request %s received from %s. Query: %s", requestId, t.getRemoteAddress(), queryString));
 
-        Reply innerResponse = null;
+        ResponseCoalescer.Flight flight = coalescer.join(queryString);
+        if (!flight.isLeader()) {
+            Optional<ResponseCoalescer.SharedResponse> shared = awaitShared(flight);
+            if (shared.isPresent()) {
+                sendShared(t, requestId, shared.get());
+                logger.info("Request " + requestId + " answered with the response of an identical request");
+                return;
+            }
+            // the identical request could not share its response: forward this one on its own
+            flight = coalescer.alone();
+        }
+
+        boolean answered = false;
         HashSet<Instance> suspectedBadInstances = new HashSet<>();
-        for (int i = 0; i < MAX_ATTEMPTS; i++) {
-            innerResponse = tryPerformingRequest(queryString, requestId, suspectedBadInstances);
+        try {
+            for (int i = 0; i < MAX_ATTEMPTS; i++) {
+                answered = tryPerformingRequest(t, queryString, requestId, suspectedBadInstances, i == 0, flight);
 
-            if (innerResponse != null) {
-                break;
+                if (answered) {
+                    break;
+                }
             }
+        } finally {
+            // unless its response was shared, the identical requests waiting are forwarded on their own
+            flight.abandon();
         }
-        if (innerResponse == null) {
+        if (!answered) {
             logger.severe(String.format("Request %s could not be answered after %d attempts", requestId, MAX_ATTEMPTS));
 
             // Send HTTP error 502 Bad Gateway
@@ -71,37 +117,37 @@ public abstract class LBStrategy implements HttpHandler {
             return;
         }
 
-        final Headers responseHeaders = t.getResponseHeaders();
-        for (Map.Entry<String, String> header : innerResponse.headers.entrySet()) {
-            responseHeaders.add(header.getKey(), header.getValue());
-        }
-
-        t.sendResponseHeaders(innerResponse.statusCode, innerResponse.body.length);
-
-        final OutputStream os = t.getResponseBody();
-        os.write(innerResponse.body);
-        os.close();
-
         logger.info("Request " + requestId + " answered");
     }
 
     /**
-     * Tries to send this request to an healthy instance, and parses its results on success, or marks that instance
-     * as a suspected unhealthy
+     * Tries to send this request to an healthy instance and stream its response to the client, or marks that
+     * instance as a suspected unhealthy
+     * The request is only committed to the instance once its response headers arrive: failures before that are
+     * retried on another instance, but once the headers are forwarded to the client the body is relayed as it
+     * arrives (through a fixed-size reusable buffer, so memory does not grow with the image size) and a failure
+     * can only abort the client's response.
      * When the response is an success, gets the method count from the headers and stores it.
+     * The first attempt waits for the instance to admit it (see AdmissionController), and may be answered with 503
+     * instead; retries already waited their turn.
+     * The response is captured for the flight of identical requests, and shared once completely sent.
+     * @param t the client exchange
      * @param queryString
      * @param requestId
      * @param suspectedBadInstances
-     * @return
+     * @param firstAttempt whether this is the request's first attempt
+     * @param flight the flight the request leads
+     * @return true if the client got a response (even a truncated one), false if the request should be retried
      */
-    private Reply tryPerformingRequest(String queryString, UUID requestId, HashSet<Instance> suspectedBadInstances) {
-        final int WAIT_TIME = 10 * 1000;// ms
+    private boolean tryPerformingRequest(HttpExchange t, String queryString, UUID requestId, HashSet<Instance> suspectedBadInstances,
+            boolean firstAttempt, ResponseCoalescer.Flight flight) {
         Optional<Long> methodCount = Optional.empty();
+        boolean committed = false;
 
         if (registry.size() == suspectedBadInstances.size() && suspectedBadInstances.containsAll(registry.readyInstances())) {
             // try to give the system some time to have healthy instances again
             try {
-                Thread.sleep(WAIT_TIME);
+                Thread.sleep(ALL_SUSPECTED_WAIT_TIME);
             } catch (InterruptedException ignored) {}
 
             // we suspect everyone, so just start fresh to be able to make progress
@@ -110,73 +156,194 @@ public abstract class LBStrategy implements HttpHandler {
         }
 
         Request request = this.startRequest(queryString, requestId, suspectedBadInstances);
+        AdmissionController.Ticket ticket = firstAttempt ? admission.enqueue(request) : admission.admitNow(request);
         try {
+            ticket.await();
             logger.info(String.format("Request %s running on instance %s", request.getId().toString(), request.getInstance().id()));
 
-            final CloseableHttpClient client = HttpClients.createDefault();
-            final RequestConfig innerRequestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
-                .setConnectionKeepAlive(TimeValue.NEG_ONE_SECOND)
-                .setConnectionRequestTimeout(Timeout.DISABLED)
-                .setResponseTimeout(Timeout.DISABLED)
-                .build();
             final HttpGet innerRequest = new HttpGet(request.getInstance().getBaseUri() + "/scan?" + queryString);
             innerRequest.addHeader(X_REQUEST_ID_HEADER, request.getId().toString());
-            innerRequest.setConfig(innerRequestConfig);
-            final CloseableHttpResponse innerResp = client.execute(innerRequest);
-
-            if (innerResp.getCode() >= 500) {
-                throw new Exception("Error in server that handled the request (statusCode >= 500)");
-            }
-
-            Reply reply = new Reply();
-            reply.statusCode = innerResp.getCode();
-
-            for (Header header : innerResp.getHeaders()) {
-                final String headerName = header.getName().toLowerCase();
+            innerRequest.setConfig(INNER_REQUEST_CONFIG);
+            // the connection goes back to the instance's pool when the response is closed
+            try (CloseableHttpResponse innerResp = request.getInstance().getHttpClient().execute(innerRequest)) {
+                if (innerResp.getCode() >= 500) {
+                    throw new Exception("Error in server that handled the request (statusCode >= 500)");
+                }
 
-                if (headerName.equals(X_METHOD_COUNT_HEADER)) {
-                    try {
-                        reply.methodCount = Optional.of(header.getValue()).map(Long::parseLong);
-                        methodCount = reply.methodCount;
-                    } catch (NullPointerException | NumberFormatException ignored) {}
-                } else if (!headerName.equals("content-length")) {
-                    reply.headers.put(header.getName(), header.getValue());
+                flight.startCapture(innerResp.getCode());
+                final Headers responseHeaders = t.getResponseHeaders();
+                for (Header header : innerResp.getHeaders()) {
+                    final String headerName = header.getName();
+
+                    if (headerName.equalsIgnoreCase(X_METHOD_COUNT_HEADER)) {
+                        try {
+                            methodCount = Optional.of(header.getValue()).map(Long::parseLong);
+                        } catch (NullPointerException | NumberFormatException ignored) {}
+                    } else if (!HOP_BY_HOP_HEADERS.contains(headerName.toLowerCase())) {
+                        responseHeaders.add(headerName, header.getValue());
+                        flight.captureHeader(headerName, header.getValue());
+                    }
                 }
-            }
 
-            int bodyLength = Long.valueOf(innerResp.getEntity().getContentLength()).intValue();
-            reply.body = readAllBytes(innerResp.getEntity().getContent(), bodyLength);
+                final HttpEntity entity = innerResp.getEntity();
+                long contentLength = entity != null ? entity.getContentLength() : 0;
+
+                // commit: from here on the client has seen the response, so there is no retrying
+                committed = true;
+                // the exchange uses chunked encoding for a length of 0, and -1 means no body at all
+                final OutputStream os;
+                try {
+                    t.sendResponseHeaders(innerResp.getCode(), contentLength == 0 ? -1 : Math.max(contentLength, 0));
+                    os = t.getResponseBody();
+                } catch (IOException e) {
+                    throw new ClientDisconnectedException(e);
+                }
+                if (entity != null) {
+                    long copied = relay(entity.getContent(), os, flight);
+                    if (contentLength > 0 && copied != contentLength) {
+                        throw new IOException("body length does not match Content-Length");
+                    }
+                }
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    throw new ClientDisconnectedException(e);
+                }
 
-            if (bodyLength != reply.body.length) {
-                throw new Exception("body length does not match Content-Length");
+                flight.complete();
+                return true;
             }
-
-            innerResp.close();
-            client.close();
-
-            return reply;
+        } catch (AdmissionController.RejectedException e) {
+            logger.warning(String.format("Request %s rejected: %s", requestId, e.getMessage()));
+            sendRejection(t, e.getRetryAfterSeconds());
+            return true;
+        } catch (AdmissionController.InstanceUnavailableException e) {
+            // not the instance's fault either, it is just gone
+            logger.warning(String.format("Request %s could not wait for its instance: %s", requestId, e.getMessage()));
+            return false;
+        } catch (ClientDisconnectedException e) {
+            // not the instance's fault
+            logger.warning(String.format("Client of request %s went away: %s", requestId, e.getMessage()));
+            t.close();
+            return true;
         } catch (Exception e) {
             logger.warning(String.format("Failed attempt at answering request %s: %s", requestId, e.getMessage()));
             e.printStackTrace();
             suspectedBadInstances.add(request.getInstance());
             registry.suspectInstanceBad(request.getInstance());
-            return null;
+
+            if (committed) {
+                // the client got part of the response: cut its connection so it notices the truncation
+                t.close();
+                return true;
+            }
+            return false;
         } finally {
             request.finished(methodCount);
+            admission.finished(ticket);
         }
 
     }
 
-    private static byte[] readAllBytes(InputStream is, int length) throws IOException {
-        byte[] buffer = new byte[length];
+    /**
+     * Answers 503 Service Unavailable, telling the client when to try again
+     */
+    private static void sendRejection(HttpExchange t, long retryAfterSeconds) {
+        try {
+            t.getResponseHeaders().add(RETRY_AFTER_HEADER, Long.toString(retryAfterSeconds));
+            t.sendResponseHeaders(503, 0);
+            t.getResponseBody().close();
+        } catch (IOException e) {
+            t.close();
+        }
+    }
 
-        int bufferIdx = 0;
-        while (bufferIdx < length) {
-            bufferIdx += is.read(buffer, bufferIdx, length - bufferIdx);
+    /**
+     * Waits for the response of the identical request leading a flight, for as long as it keeps making progress
+     * (see ResponseCoalescer.MAX_WAIT)
+     * @return the response, empty if it was not shared in time
+     */
+    private static Optional<ResponseCoalescer.SharedResponse> awaitShared(ResponseCoalescer.Flight flight) {
+        try {
+            long wait;
+            while ((wait = flight.remainingWait()) > 0) {
+                try {
+                    return Optional.of(flight.response().get(wait, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    // check whether the leader made progress meanwhile
+                }
+            }
+            return Optional.empty();
+        } catch (ExecutionException | CancellationException e) {
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Answers with the (copy of the) response of an identical request, under this request's id
+     */
+    private static void sendShared(HttpExchange t, UUID requestId, ResponseCoalescer.SharedResponse response) {
+        try {
+            final Headers responseHeaders = t.getResponseHeaders();
+            for (String[] header : response.headers()) {
+                responseHeaders.add(header[0], header[1]);
+            }
+            responseHeaders.add(X_REQUEST_ID_HEADER, requestId.toString());
+
+            final byte[] body = response.body();
+            t.sendResponseHeaders(response.statusCode(), body.length == 0 ? -1 : body.length);
+            final OutputStream os = t.getResponseBody();
+            os.write(body);
+            os.close();
+        } catch (IOException e) {
+            t.close();
+        }
+    }
+
+    /**
+     * Copies a response body as it arrives, through a reusable per-thread (or pooled) buffer, capturing it for the
+     * flight.
+     * @return the number of bytes copied
+     * @throws ClientDisconnectedException if writing to the client fails
+     * @throws IOException if reading from the instance fails
+     */
+    private static long relay(InputStream is, OutputStream os, ResponseCoalescer.Flight flight) throws IOException {
+        final byte[] buffer = relayBufferPool != null ? relayBufferPool.acquire() : relayBuffer.get();
+        long copied = 0;
+
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                try {
+                    os.write(buffer, 0, n);
+                } catch (IOException e) {
+                    throw new ClientDisconnectedException(e);
+                }
+                flight.captureBody(buffer, 0, n);
+                copied += n;
+            }
+        } finally {
+            if (relayBufferPool != null) {
+                relayBufferPool.release(buffer);
+            }
         }
 
         is.close();
-        return buffer;
+        return copied;
+    }
+
+    /**
+     * The client connection failed while sending it a response (its headers or its body)
+     */
+    private static class ClientDisconnectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ClientDisconnectedException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
     }
 
     /**
@@ -189,13 +356,4 @@ public abstract class LBStrategy implements HttpHandler {
      * @return request representation
      */
     public abstract Request startRequest(String queryString, UUID requestId, HashSet<Instance> suspectedBadInstances);
-
-    private static class Reply {
-        public int statusCode;
-        public byte[] body;
-        public Map<String, String> headers = new HashMap<>();
-        public Optional<Long> methodCount = Optional.empty();
-
-        public Reply() {}
-    }
 }
@@ -0,0 +1,74 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.UUID;
+
+import cnv.autoscaler.Instance;
+import cnv.autoscaler.InstanceRegistry;
+
+/**
+ * The least-expected-completion load balancing implementation, where each request is forwarded to the instance that
+ * is expected to finish it first: the one with the least (current load + request's load) / throughput, using each
+ * instance's measured throughput in methods per second (see Instance.methodsPerSecond).
+ * Unlike the raw load, this accounts for instances that are slower than others (different instance types, noisy
+ * neighbours). Instances not measured yet are assumed to be as fast as the average of the measured ones.
+ * This implementation only forwards requests to healthy instances
+ */
+public class LeastCompletionLBStrategy extends LBStrategy {
+    public LeastCompletionLBStrategy(InstanceRegistry registry) {
+        super(registry);
+    }
+
+    public Request startRequest(String queryString, UUID requestId, HashSet<Instance> suspectedBadInstances) {
+        RequestParams requestParams = new RequestParams(queryString);
+        Instance.FastEstimate estimate = Instance.fastLoadEstimate(requestParams);
+        Instance instance;
+        Optional<Request> request;
+
+        do {
+            instance = pickInstance(registry.readyInstanceSnapshot(), suspectedBadInstances, estimate.value());
+            request = instance.requestStart(requestParams, estimate, requestId);
+        } while (!request.isPresent());
+
+        return request.get();
+    }
+
+    /**
+     * @return the instance not suspected with the earliest expected completion for the request
+     * @throws NoSuchElementException if all instances are suspected
+     */
+    private static Instance pickInstance(List<Instance> instances, HashSet<Instance> suspectedBadInstances,
+            long requestLoad) {
+        OptionalDouble averageThroughput = instances.stream()
+            .map(Instance::methodsPerSecond)
+            .filter(OptionalDouble::isPresent)
+            .mapToDouble(OptionalDouble::getAsDouble)
+            .average();
+        // with nothing measured, all instances are alike and this is the min-load strategy
+        double defaultThroughput = averageThroughput.orElse(1);
+
+        Instance best = null;
+        double bestCompletion = Double.POSITIVE_INFINITY;
+        for (Instance instance : instances) {
+            if (suspectedBadInstances.contains(instance)) {
+                continue;
+            }
+
+            double throughput = instance.methodsPerSecond().orElse(defaultThroughput);
+            double completion = (instance.currentLoad() + requestLoad) / throughput;
+            if (best == null || completion < bestCompletion) {
+                best = instance;
+                bestCompletion = completion;
+            }
+        }
+
+        if (best == null) {
+            throw new NoSuchElementException("No ready instances that are not suspected");
+        }
+        return best;
+    }
+}
@@ -3,7 +3,9 @@ package cnv.autoscaler.loadbalancer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.logging.Logger;
 
 import com.sun.net.httpserver.HttpServer;
 
@@ -13,23 +15,78 @@ import cnv.autoscaler.InstanceRegistry;
  * Implementation of the load balancer
  * Receives the registry of all instances and the address and port where to listen
  * Provides the /scan endpoint to the clients
+ * The load balancing strategy is picked with -Dlb.strategy=min-load (default), two-choices, least-completion or
+ * round-robin
+ * With -Dlb.async=true, requests are forwarded without blocking a thread each (see AsyncScanProxy)
+ * With -Dlb.coalesce=true, identical requests share the response of a single forwarded one (see ResponseCoalescer)
+ * With -Dlb.virtualThreads=true (Java 21+ runtime), each request blocks a virtual thread instead of a platform one,
+ * and at most -Dlb.maxConcurrentRequests (default 4096) are forwarded at a time
  */
 public class LoadBalancer {
+    private static final Logger logger = Logger.getLogger(LoadBalancer.class.getName());
+    private static final int MAX_CONCURRENT_REQUESTS = Integer.getInteger("lb.maxConcurrentRequests", 4096);
+
     private final HttpServer server;
+    private final AsyncScanProxy asyncProxy;
 
     public LoadBalancer(InstanceRegistry registry, String address, int port) throws IOException {
+        LBStrategy strategy = newStrategy(registry);
+
+        if (Boolean.getBoolean("lb.async")) {
+            server = null;
+            asyncProxy = new AsyncScanProxy(strategy, address, port);
+            return;
+        }
+
+        asyncProxy = null;
         server = HttpServer.create(new InetSocketAddress(address, port), 0);
-        server.createContext("/scan", new MinLoadLBStrategy(registry));
+        server.createContext("/scan", strategy);
+
+        server.setExecutor(newRequestExecutor());
+    }
+
+    private static LBStrategy newStrategy(InstanceRegistry registry) {
+        String name = System.getProperty("lb.strategy", "min-load");
+        logger.info("Using the " + name + " load balancing strategy");
+
+        switch (name) {
+            case "min-load":
+                return new MinLoadLBStrategy(registry);
+            case "two-choices":
+                return new TwoChoicesLBStrategy(registry);
+            case "least-completion":
+                return new LeastCompletionLBStrategy(registry);
+            case "round-robin":
+                return new RoundRobinLBStrategy(registry);
+            default:
+                throw new IllegalArgumentException("Unknown load balancing strategy: " + name);
+        }
+    }
+
+    private static Executor newRequestExecutor() {
+        if (Boolean.getBoolean("lb.virtualThreads")) {
+            try {
+                Executor executor = RequestExecutors.newVirtualThreadExecutor(MAX_CONCURRENT_REQUESTS);
+                logger.info("Using virtual threads, up to " + MAX_CONCURRENT_REQUESTS + " concurrent requests");
+                return executor;
+            } catch (UnsupportedOperationException e) {
+                logger.warning("Could not use virtual threads, falling back to a thread pool: " + e.getMessage());
+            }
+        }
 
         // be aware! infinite pool of threads!
-        server.setExecutor(Executors.newCachedThreadPool());
+        return Executors.newCachedThreadPool();
     }
 
-    public void start() {
-        server.start();
+    public void start() throws IOException {
+        if (asyncProxy != null) {
+            asyncProxy.start();
+        } else {
+            server.start();
+        }
     }
 
     public InetSocketAddress getAddress() {
-        return server.getAddress();
+        return asyncProxy != null ? asyncProxy.getAddress() : server.getAddress();
     }
 }
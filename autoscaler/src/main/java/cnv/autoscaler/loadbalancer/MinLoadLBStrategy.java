@@ -1,6 +1,5 @@
 package cnv.autoscaler.loadbalancer;
 
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.UUID;
@@ -11,6 +10,7 @@ import cnv.autoscaler.InstanceRegistry;
 /**
  * The min-load load balancing implementation, where it forwards each request to the instance that has the least load
  * This implementation only forwards requests to healthy instances
+ * The least loaded instance comes from the registry's load index, in logarithmic time
  */
 public class MinLoadLBStrategy extends LBStrategy {
     public MinLoadLBStrategy(InstanceRegistry registry) {
@@ -22,10 +22,7 @@ public class MinLoadLBStrategy extends LBStrategy {
         Optional<Request> request = Optional.empty();
 
         do {
-            instance = registry.readyInstances().stream()
-                .filter(inst -> !suspectedBadInstances.contains(inst))
-                .min(Comparator.comparingLong(inst -> inst.currentLoad()))
-                .get();
+            instance = registry.leastLoadedInstance(suspectedBadInstances).get();
 
             request = instance.requestStart(queryString, requestId);
         } while (!request.isPresent());
@@ -0,0 +1,48 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size buffers for relaying response bodies, for when requests do not run on long-lived threads (virtual
+ * threads are one per request, so a per-thread buffer would be allocated, and dropped, for every request).
+ *
+ * At most maxPooled buffers are kept: more may be in use at once, but the extra ones are dropped when released, so a
+ * burst of requests doesn't pin that memory forever.
+ */
+class RelayBufferPool {
+    private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+    private final int bufferSize;
+    private final int maxPooled;
+
+    RelayBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a buffer, pooled if available
+     */
+    byte[] acquire() {
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+
+        pooledCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. It must not be used afterwards.
+     * @param buffer the buffer obtained from acquire()
+     */
+    void release(byte[] buffer) {
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            pool.add(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+}
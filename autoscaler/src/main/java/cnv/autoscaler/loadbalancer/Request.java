@@ -1,19 +1,29 @@
 package cnv.autoscaler.loadbalancer;
 
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cnv.autoscaler.Instance;
 
 /**
  * Class representing a receiving Request
- * It has the parameters sent with the request, and the instance where the request was forwarded to
+ * It has the parameters sent with the request, the instance where the request was forwarded to, and its current load
+ * estimate on that instance
  */
 public class Request {
     private UUID id;
     private Instance instance;
     private RequestParams params;
 
+    private static final long ENDED = -1;
+    /**
+     * The load this request accounts for on its instance, ENDED once it was removed from it. Updated with CAS, so an
+     * estimate arriving late (see BetterEstimateFetcher) never adds load back after the request ended
+     */
+    private final AtomicLong loadEstimate = new AtomicLong(0);
+
     public Request(UUID id, Instance instance, RequestParams params) {
         this.id = id;
         this.instance = instance;
@@ -32,6 +42,46 @@ public class Request {
         return this.id;
     }
 
+    /**
+     * @return the current load estimate, 0 once the request ended
+     */
+    public long loadEstimate() {
+        return Math.max(loadEstimate.get(), 0);
+    }
+
+    /**
+     * Sets a new load estimate, unless the request already ended.
+     * @param newEstimate the new estimate (non-negative)
+     * @return the previous estimate, empty if the request already ended (and the estimate was not set)
+     */
+    public OptionalLong replaceLoadEstimate(long newEstimate) {
+        long prevEstimate;
+        do {
+            prevEstimate = loadEstimate.get();
+            if (prevEstimate == ENDED) {
+                return OptionalLong.empty();
+            }
+        } while (!loadEstimate.compareAndSet(prevEstimate, newEstimate));
+
+        return OptionalLong.of(prevEstimate);
+    }
+
+    /**
+     * Marks the request as ended on its instance.
+     * @return the last load estimate, empty if it had already ended
+     */
+    public OptionalLong end() {
+        long prevEstimate = loadEstimate.getAndSet(ENDED);
+        return prevEstimate == ENDED ? OptionalLong.empty() : OptionalLong.of(prevEstimate);
+    }
+
+    /**
+     * @return whether the request ended on its instance
+     */
+    public boolean hasEnded() {
+        return loadEstimate.get() == ENDED;
+    }
+
     public void finished(Optional<Long> methodCount) {
         this.instance.requestEnd(this, methodCount);
     }
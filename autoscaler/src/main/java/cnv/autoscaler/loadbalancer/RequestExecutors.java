@@ -0,0 +1,47 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Executors for the request handlers.
+ *
+ * The virtual-thread executor needs a Java 21+ runtime. It is looked up reflectively, so that the load balancer still
+ * builds for (and runs on) Java 8 when it is not used.
+ */
+class RequestExecutors {
+
+    private RequestExecutors() {
+    }
+
+    /**
+     * @param maxConcurrentRequests how many requests may run at the same time (the others wait, parked, for a permit)
+     * @return an executor starting one virtual thread per request
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    static Executor newVirtualThreadExecutor(int maxConcurrentRequests) {
+        Executor virtualThreads;
+        try {
+            virtualThreads = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21+, running on Java "
+                    + System.getProperty("java.version"));
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(e.getCause());
+        }
+
+        // the permit is taken by the task itself, so a waiting request costs a parked virtual thread and never
+        // blocks the server's dispatcher
+        final Semaphore permits = new Semaphore(maxConcurrentRequests, true);
+        return command -> virtualThreads.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+}
@@ -5,10 +5,13 @@ import java.util.Objects;
 /**
  * Represents the parameters sent with each query request
  * Parses each parameter, containing the algorithm, the path of the image and each position and viewpor
+ * Equality (and similarity) only consider the viewport, the algorithm and the image
  */
 public class RequestParams {
     public final static int POSITION_THRESHOLD = 16; // TODO: tune (future work)
     public long x0 = 0, x1 = 0, y0 = 0, y1 = 0;
+    public long xS = 0, yS = 0; // start position
+    public long width = 0, height = 0; // of the image
     public String algo, imagePath;
 
     public RequestParams(String queryString) {
@@ -16,7 +19,8 @@ public class RequestParams {
         for (String param : params) {
             try {
                 if (param.startsWith("s=")) {
-                    algo = param.substring(2);
+                    // interned: the estimator caches many requests for the same few algorithms and images
+                    algo = param.substring(2).intern();
                 } else if (param.startsWith("x0=")) {
                     x0 = Long.parseLong(param.substring(3));
                 } else if (param.startsWith("x1=")) {
@@ -25,8 +29,16 @@ public class RequestParams {
                     y0 = Long.parseLong(param.substring(3));
                 } else if (param.startsWith("y1=")) {
                     y1 = Long.parseLong(param.substring(3));
+                } else if (param.startsWith("xS=")) {
+                    xS = Long.parseLong(param.substring(3));
+                } else if (param.startsWith("yS=")) {
+                    yS = Long.parseLong(param.substring(3));
+                } else if (param.startsWith("w=")) {
+                    width = Long.parseLong(param.substring(2));
+                } else if (param.startsWith("h=")) {
+                    height = Long.parseLong(param.substring(2));
                 } else if (param.startsWith("i=")) {
-                    imagePath = param.substring(2);
+                    imagePath = param.substring(2).intern();
                 }
             } catch (NumberFormatException ignored) {
                 // even if it fails, good defaults are provided
@@ -48,14 +60,24 @@ public class RequestParams {
      * @return whether the two RequestParams are similar or not
      */
     public boolean similarTo(RequestParams other) {
-        return this.algo.equals(other.algo)
-            && this.imagePath.equals(other.imagePath)
+        return Objects.equals(this.algo, other.algo)
+            && Objects.equals(this.imagePath, other.imagePath)
             && Math.abs(this.x0 - other.x0) <= POSITION_THRESHOLD
             && Math.abs(this.x1 - other.x1) <= POSITION_THRESHOLD
             && Math.abs(this.y0 - other.y0) <= POSITION_THRESHOLD
             && Math.abs(this.y1 - other.y1) <= POSITION_THRESHOLD;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RequestParams)) {
+            return false;
+        }
+        RequestParams other = (RequestParams) o;
+        return x0 == other.x0 && x1 == other.x1 && y0 == other.y0 && y1 == other.y1
+            && Objects.equals(algo, other.algo) && Objects.equals(imagePath, other.imagePath);
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(x0, x1, y0, y1, algo, imagePath);
@@ -0,0 +1,384 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Single-flight coalescing of identical scans, enabled with -Dlb.coalesce=true (otherwise every request is forwarded,
+ * as before).
+ *
+ * Identical queries (same parameters, in any order) produce identical images, so while one is being forwarded (the
+ * flight's leader), the identical ones that arrive wait for its response instead of being forwarded too, and then get
+ * a copy of it. Successful responses are also kept in a cache, bounded by their size in memory
+ * (-Dlb.responseCache.maxBytes, default 64 MiB, 0 disables it), which answers exact repeats afterwards.
+ *
+ * Only complete 200 responses of up to MAX_SHARED_BODY_SIZE are shared, without the headers about the leader's own
+ * request (PER_REQUEST_HEADERS). A leader only captures its response if it has a use: the cache is enabled, or
+ * identical requests are waiting when the response arrives (otherwise the flight is closed to them, and the next
+ * identical request starts its own). All the captures together hold at most -Dlb.coalesce.maxCaptureBytes (default
+ * 64 MiB). When the leader can't share its response (an error, a bigger body, no memory left for it, its client went
+ * away), the flight is abandoned, and the waiting requests are forwarded on their own; so are the ones that waited
+ * MAX_WAIT without the leader making progress (getting its response, or more of its body).
+ *
+ * Thread-safety: flights are joined and closed within the map's and their follower count's atomic operations; a
+ * flight's capture is synchronized, as the async proxy may abandon it while its instance side captures.
+ */
+public class ResponseCoalescer {
+    private static final Logger logger = Logger.getLogger(ResponseCoalescer.class.getName());
+
+    private static final int MAX_SHARED_BODY_SIZE = 16 * 1024 * 1024;
+    private static final long CACHE_MAX_BYTES = Long.getLong("lb.responseCache.maxBytes", 64 * 1024 * 1024L);
+    private static final long MAX_CAPTURE_BYTES = Long.getLong("lb.coalesce.maxCaptureBytes", 64 * 1024 * 1024L);
+    private static final int ENTRY_OVERHEAD = 256; // bytes, the key and the objects around the body
+
+    /**
+     * How long a request waits for the response of an identical one, without it making progress, before being
+     * forwarded on its own: as long as it could wait to be admitted to an instance
+     */
+    static final long MAX_WAIT = AdmissionController.QUEUE_DEADLINE; // ms
+
+    /**
+     * Headers describing the leader's request (its id and measured cost), which are not shared
+     */
+    static final Set<String> PER_REQUEST_HEADERS = new HashSet<>(Arrays.asList(
+        LBStrategy.X_REQUEST_ID_HEADER.toLowerCase(), LBStrategy.X_METHOD_COUNT_HEADER.toLowerCase(),
+        LBStrategy.X_INSTRUCTION_COUNT_HEADER.toLowerCase()));
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<String, InFlight> flights = new ConcurrentHashMap<>();
+    private final Cache<String, SharedResponse> cache;
+    private final AtomicLong capturedBytes = new AtomicLong(0); // by all the leaders
+
+    public ResponseCoalescer() {
+        this.enabled = Boolean.getBoolean("lb.coalesce");
+        this.cache = enabled && CACHE_MAX_BYTES > 0
+            ? Caffeine.newBuilder()
+                .maximumWeight(CACHE_MAX_BYTES)
+                .<String, SharedResponse>weigher((key, response) -> key.length() + response.weight())
+                .build()
+            : null;
+    }
+
+    /**
+     * Joins the flight of identical requests, if there is one, or starts a new one.
+     * @param queryString the request's query string
+     * @return a flight led by the caller (which must complete or abandon it), or the (maybe cached) response of an
+     * identical request to wait for. Always led by the caller when coalescing is disabled
+     */
+    public Flight join(String queryString) {
+        if (!enabled) {
+            return alone();
+        }
+
+        String key = normalize(queryString);
+        SharedResponse cached = cache != null ? cache.getIfPresent(key) : null;
+        if (cached != null) {
+            InFlight done = new InFlight();
+            done.response.complete(cached);
+            return new Flight(key, done, false);
+        }
+
+        // a flight whose leader is not capturing its response can't be joined: it is replaced by a new one
+        InFlight created = new InFlight();
+        InFlight flight = flights.compute(key,
+            (k, existing) -> existing != null && existing.addFollower() ? existing : created);
+        if (flight == created && cache != null) {
+            // the previous flight may have ended since the cache was checked
+            cached = cache.getIfPresent(key);
+            if (cached != null) {
+                flights.remove(key, created);
+                created.response.complete(cached);
+                return new Flight(key, created, false);
+            }
+        }
+        return new Flight(key, flight, flight == created);
+    }
+
+    /**
+     * @return a flight of the caller alone, for a request that must be forwarded without coalescing
+     */
+    public Flight alone() {
+        return new Flight(null, null, true);
+    }
+
+    /**
+     * @return the query's parameters, sorted
+     */
+    static String normalize(String queryString) {
+        if (queryString == null) {
+            return "";
+        }
+
+        String[] params = queryString.split("&");
+        Arrays.sort(params);
+        return String.join("&", params);
+    }
+
+    /**
+     * A request's part in a flight: either its leader, which forwards the request and captures the response for the
+     * others, or one of the requests waiting for that response
+     */
+    public class Flight {
+        private final String key;
+        private final InFlight flight;
+        private final boolean leader;
+        private final long joinedAt = System.nanoTime();
+
+        // the leader's capture of the response
+        private int statusCode;
+        private final List<String[]> headers = new ArrayList<>();
+        private ByteArrayOutputStream body = null;
+        private long reservedBytes = 0; // of capturedBytes
+        private boolean shareable = false;
+
+        Flight(String key, InFlight flight, boolean leader) {
+            this.key = key;
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        /**
+         * @return whether this request leads the flight, and must be forwarded
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @return the response to share, completed exceptionally if the leader abandoned the flight
+         */
+        public CompletableFuture<SharedResponse> response() {
+            return flight.response;
+        }
+
+        /**
+         * @return how long, in ms, a request waiting for this flight may still wait: MAX_WAIT after it joined or
+         * after the leader's last progress, whichever is later. Not positive once it should be forwarded on its own
+         */
+        public long remainingWait() {
+            long lastProgress = flight.lastProgress;
+            long since = lastProgress - joinedAt > 0 ? lastProgress : joinedAt;
+            return MAX_WAIT - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        }
+
+        /**
+         * Starts capturing a (new) response, discarding any previous one (of a failed attempt). Only 200 responses
+         * are captured, and only if the cache is enabled or identical requests are waiting for it
+         */
+        public synchronized void startCapture(int statusCode) {
+            release();
+            this.statusCode = statusCode;
+            this.headers.clear();
+            this.shareable = key != null && leader && statusCode == 200 && !flight.response.isDone()
+                && (cache != null || flight.keepForFollowers());
+            if (shareable) {
+                flight.lastProgress = System.nanoTime();
+            } else if (key != null && leader && flight.isClosed()) {
+                flights.remove(key, flight); // the next identical request leads a flight of its own
+            }
+        }
+
+        /**
+         * Captures a header, as sent to the client, unless it is one of PER_REQUEST_HEADERS
+         */
+        public synchronized void captureHeader(String name, String value) {
+            if (shareable && !PER_REQUEST_HEADERS.contains(name.toLowerCase())) {
+                headers.add(new String[] { name, value });
+            }
+        }
+
+        /**
+         * Captures part of the body. Past MAX_SHARED_BODY_SIZE, or MAX_CAPTURE_BYTES for all the captures, the
+         * response is not shared, and the flight is abandoned right away
+         */
+        public synchronized void captureBody(byte[] bytes, int offset, int length) {
+            if (!shareable) {
+                return;
+            }
+            if (reservedBytes + length > MAX_SHARED_BODY_SIZE || !reserve(length)) {
+                abandon();
+                return;
+            }
+
+            if (body == null) {
+                body = new ByteArrayOutputStream();
+            }
+            body.write(bytes, offset, length);
+            flight.lastProgress = System.nanoTime();
+        }
+
+        /**
+         * Shares the captured response with the waiting requests (and the next identical ones, through the cache), if
+         * it can be shared. Otherwise, abandons the flight
+         */
+        public synchronized void complete() {
+            if (key == null || !leader || flight.response.isDone()) {
+                release();
+                return;
+            }
+            if (!shareable) {
+                abandon();
+                return;
+            }
+
+            SharedResponse shared = new SharedResponse(statusCode, headers,
+                body != null ? body.toByteArray() : new byte[0]);
+            release();
+            // cached before the flight ends, so that identical requests always find one or the other
+            if (cache != null) {
+                cache.put(key, shared);
+            }
+            flights.remove(key, flight);
+            flight.response.complete(shared);
+        }
+
+        /**
+         * Ends the flight without a response to share: the waiting requests are forwarded on their own. Does nothing
+         * if the flight already ended
+         */
+        public synchronized void abandon() {
+            shareable = false;
+            release();
+            if (key == null || !leader || flight.response.isDone()) {
+                return;
+            }
+
+            flights.remove(key, flight);
+            if (flight.response.completeExceptionally(
+                    new CancellationException("the identical request was not answered"))) {
+                logger.fine("Abandoned the flight of " + key);
+            }
+        }
+
+        private boolean reserve(int length) {
+            if (capturedBytes.addAndGet(length) > MAX_CAPTURE_BYTES) {
+                capturedBytes.addAndGet(-length);
+                return false;
+            }
+            reservedBytes += length;
+            return true;
+        }
+
+        /**
+         * Drops the captured body, giving back its share of MAX_CAPTURE_BYTES
+         */
+        private void release() {
+            capturedBytes.addAndGet(-reservedBytes);
+            reservedBytes = 0;
+            body = null;
+        }
+    }
+
+    /**
+     * The shared state of a flight: its response, and the requests waiting for it
+     */
+    private static class InFlight {
+        private static final int CLOSED = -1;
+
+        final CompletableFuture<SharedResponse> response = new CompletableFuture<>();
+        /** the number of requests waiting for the response, CLOSED once the leader decided not to capture it */
+        final AtomicInteger followers = new AtomicInteger(0);
+        /** when the leader last made progress (its response arrived, or part of its body), in System.nanoTime() */
+        volatile long lastProgress = System.nanoTime();
+
+        /**
+         * @return false if the flight is closed to followers
+         */
+        boolean addFollower() {
+            int count;
+            do {
+                count = followers.get();
+                if (count == CLOSED) {
+                    return false;
+                }
+            } while (!followers.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * @return true if requests are waiting for the response. Otherwise, closes the flight to new ones
+         */
+        boolean keepForFollowers() {
+            int count;
+            do {
+                count = followers.get();
+                if (count != 0) {
+                    return count > 0;
+                }
+            } while (!followers.compareAndSet(0, CLOSED));
+            return false;
+        }
+
+        boolean isClosed() {
+            return followers.get() == CLOSED;
+        }
+    }
+
+    /**
+     * A complete response, shared by identical requests. Never modified
+     */
+    public static class SharedResponse {
+        private final int statusCode;
+        private final List<String[]> headers;
+        private final byte[] body;
+
+        SharedResponse(int statusCode, List<String[]> headers, byte[] body) {
+            this.statusCode = statusCode;
+            this.headers = Collections.unmodifiableList(new ArrayList<>(headers));
+            this.body = body;
+        }
+
+        public int statusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return the headers as (name, value) pairs, without the hop-by-hop and per-request ones
+         */
+        public List<String[]> headers() {
+            return headers;
+        }
+
+        /**
+         * @return the body. Must not be modified
+         */
+        public byte[] body() {
+            return body;
+        }
+
+        /**
+         * @return the value of a header, null if there is none
+         */
+        public String header(String name) {
+            for (String[] header : headers) {
+                if (header[0].equalsIgnoreCase(name)) {
+                    return header[1];
+                }
+            }
+            return null;
+        }
+
+        int weight() {
+            int weight = ENTRY_OVERHEAD + body.length;
+            for (String[] header : headers) {
+                weight += header[0].length() + header[1].length();
+            }
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package cnv.autoscaler.loadbalancer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import cnv.autoscaler.Instance;
+import cnv.autoscaler.InstanceRegistry;
+
+/**
+ * The power-of-two-choices load balancing implementation, where each request is forwarded to the least loaded of two
+ * different instances picked at random.
+ * It only reads two loads per request and shares no state between requests (not even an index to keep up to date), so
+ * it scales with the number of instances and of concurrent requests, while still avoiding the overloaded instances
+ * almost as well as always picking the least loaded one.
+ * This implementation only forwards requests to healthy instances
+ */
+public class TwoChoicesLBStrategy extends LBStrategy {
+    public TwoChoicesLBStrategy(InstanceRegistry registry) {
+        super(registry);
+    }
+
+    public Request startRequest(String queryString, UUID requestId, HashSet<Instance> suspectedBadInstances) {
+        Optional<Request> request;
+
+        do {
+            Instance instance = pickInstance(registry.readyInstanceSnapshot(), suspectedBadInstances);
+            request = instance.requestStart(queryString, requestId);
+        } while (!request.isPresent());
+
+        return request.get();
+    }
+
+    /**
+     * @return the least loaded of two distinct random instances out of the ones not suspected (the only one, if there
+     * is only one)
+     * @throws NoSuchElementException if all instances are suspected
+     */
+    private static Instance pickInstance(List<Instance> instances, HashSet<Instance> suspectedBadInstances) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = randomIndex(instances, suspectedBadInstances, -1, random);
+        if (first < 0) {
+            throw new NoSuchElementException("No ready instances that are not suspected");
+        }
+        int second = randomIndex(instances, suspectedBadInstances, first, random);
+        if (second < 0) {
+            return instances.get(first);
+        }
+
+        Instance firstInstance = instances.get(first);
+        Instance secondInstance = instances.get(second);
+        return secondInstance.currentLoad() < firstInstance.currentLoad() ? secondInstance : firstInstance;
+    }
+
+    /**
+     * @param excludedIndex the index of an instance not to pick (the first pick), -1 for none
+     * @return the index of a random instance out of the ones not suspected, other than the excluded one. -1 if there
+     * is none
+     */
+    private static int randomIndex(List<Instance> instances, HashSet<Instance> suspectedBadInstances,
+            int excludedIndex, ThreadLocalRandom random) {
+        // drawn from the remaining instances, skipping over the excluded one
+        int candidates = excludedIndex < 0 ? instances.size() : instances.size() - 1;
+
+        // usually few instances are suspected, so a few random tries find a good one
+        for (int i = 0; i < candidates; i++) {
+            int index = random.nextInt(candidates);
+            if (excludedIndex >= 0 && index >= excludedIndex) {
+                index++;
+            }
+            if (!suspectedBadInstances.contains(instances.get(index))) {
+                return index;
+            }
+        }
+
+        for (int index = 0; index < instances.size(); index++) {
+            if (index != excludedIndex && !suspectedBadInstances.contains(instances.get(index))) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
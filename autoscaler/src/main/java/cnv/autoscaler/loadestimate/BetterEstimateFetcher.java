@@ -1,25 +1,69 @@
 package cnv.autoscaler.loadestimate;
 
-import java.util.OptionalDouble;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import cnv.autoscaler.aws.AwsMetricDownloader;
+import cnv.autoscaler.aws.MethodCountStats;
 import cnv.autoscaler.loadbalancer.Request;
 
 /**
- * Implements a slow-ish estimate fetcher which relies on querying DynamoDB. This runs on a separate thread
+ * Implements a slow-ish estimate fetcher which relies on querying DynamoDB. This runs on N_WORKERS separate threads
  * to allow non-blocking operation.
+ *
+ * An estimate is only useful if it arrives while its request is still running, so:
+ * - lookups are coalesced: a request similar to one whose lookup is still pending (same MethodCountStats.cellOf)
+ *   joins that lookup instead of queueing another one;
+ * - the queue is bounded (MAX_QUEUED_LOOKUPS), lookups that don't fit are dropped rather than answered late;
+ * - lookups whose requests all ended while queued are dropped instead of fetched;
+ * - each worker fetches up to BATCH_SIZE lookups at a time, reading their statistics together.
+ * The time from queueing a request to its estimate is recorded and logged, with the other counters, every
+ * STATS_LOG_INTERVAL.
+ *
+ * The estimate is risk-aware: it is RISK_FACTOR standard deviations above the mean of the similar requests (but never
+ * above the largest of them), so requests whose cost varies a lot weigh more on an instance's load, and are less
+ * likely to be piled on the same instance.
  */
 public class BetterEstimateFetcher {
+    private static final double RISK_FACTOR = 0.5;
+
+    private static final int N_WORKERS = 4;
+    private static final int MAX_QUEUED_LOOKUPS = 1024;
+    private static final int BATCH_SIZE = 25;
+    private static final long STATS_LOG_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
     private final Logger logger = Logger.getLogger(BetterEstimateFetcher.class.getName());
-    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
-    private final Semaphore queueNotEmpty = new Semaphore(0);
+    private final BlockingQueue<Lookup> queue = new LinkedBlockingQueue<>(MAX_QUEUED_LOOKUPS);
+
+    /**
+     * The queued and running lookups by cell. Requests join a lookup, and it is removed once done, within the map's
+     * atomic operations, so a request either joins a lookup in time to get its result or starts a new one
+     */
+    private final ConcurrentHashMap<String, Lookup> pendingLookups = new ConcurrentHashMap<>();
+
+    private final LongAdder updatedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder(); // queue full
+    private final LongAdder skippedCount = new LongAdder(); // ended before the lookup
+    private final LongAdder lateCount = new LongAdder(); // ended before the estimate arrived
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final AtomicLong nextStatsLog = new AtomicLong(System.nanoTime() + STATS_LOG_INTERVAL);
 
     public BetterEstimateFetcher() {
-        Thread worker = new Thread(new Worker(), "BetterEstimateFetcher worker");
-        worker.start();
+        for (int i = 0; i < N_WORKERS; i++) {
+            Thread worker = new Thread(new Worker(), "BetterEstimateFetcher worker " + i);
+            worker.start();
+        }
     }
 
     /**
@@ -27,40 +71,183 @@ public class BetterEstimateFetcher {
      * @param req the correspondign request
      */
     public void queueEstimationRequest(Request req) {
-        queue.add(req);
+        String cell = MethodCountStats.cellOf(req.params());
+        Waiter waiter = new Waiter(req);
 
-        if (queueNotEmpty.availablePermits() <= 0) {
-            // try to not issue too many permits (>1 make the worker spin needlessly)
-            queueNotEmpty.release();
+        Lookup lookup = pendingLookups.compute(cell, (key, pending) -> {
+            if (pending != null) {
+                pending.join(waiter);
+                return pending;
+            }
+            return new Lookup(key, waiter);
+        });
+
+        if (lookup.firstWaiter() != waiter) {
+            coalescedCount.increment();
+        } else if (!queue.offer(lookup)) {
+            pendingLookups.remove(cell, lookup);
+            droppedCount.add(lookup.waiters().size());
         }
     }
 
+    private static long riskAdjustedEstimate(MethodCountStats stats) {
+        return Math.round(Math.min(stats.mean() + RISK_FACTOR * stats.standardDeviation(), stats.max()));
+    }
+
+    private void maybeLogStats() {
+        long now = System.nanoTime();
+        long next = nextStatsLog.get();
+        if (now < next || !nextStatsLog.compareAndSet(next, now + STATS_LOG_INTERVAL)) {
+            return;
+        }
+
+        logger.info(String.format("Better estimates: %d updated (%d coalesced), %d dropped, %d skipped, %d late; %s",
+            updatedCount.sumThenReset(), coalescedCount.sumThenReset(), droppedCount.sumThenReset(),
+            skippedCount.sumThenReset(), lateCount.sumThenReset(), latency.summarizeAndReset()));
+    }
+
     /**
      * Implements a worker responsible for fetching the estimates from DynamoDB. The worker polls for current
-     * estimation requests and updates their load estimate when a response from DynamoDB is received.
+     * lookups and updates the load estimates of their requests when a response from DynamoDB is received.
      */
     private class Worker implements Runnable {
         @Override
         public void run() {
-            Request req;
+            List<Lookup> batch = new ArrayList<>(BATCH_SIZE);
             while (true) {
                 try {
-                    queueNotEmpty.acquire();
-                } catch (InterruptedException ignored) {}
-
-                while ((req = queue.poll()) != null) {
-                    try {
-                        logger.info("Fetching a better estimate from DynamoDB for request " + req.getId().toString());
-                        OptionalDouble methodCount = AwsMetricDownloader.getEstimatedMethodCountForRequest(req.params());
-
-                        if (methodCount.isPresent()) {
-                            req.getInstance().updateRequestEstimate(req, Math.round(methodCount.getAsDouble()));
-                        }
-                    } catch(Exception e) {
-                        e.printStackTrace();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    dropEnded(batch);
+                    if (!batch.isEmpty()) {
+                        fetch(batch);
+                    }
+                } catch (InterruptedException ignored) {
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    // whatever happened, similar requests must not join these lookups anymore
+                    for (Lookup lookup : batch) {
+                        pendingLookups.remove(lookup.cell, lookup);
+                    }
+                    batch.clear();
+                }
+                maybeLogStats();
+            }
+        }
+
+        /**
+         * Removes the lookups whose requests all ended, atomically with respect to new requests joining them
+         */
+        private void dropEnded(List<Lookup> batch) {
+            for (Iterator<Lookup> it = batch.iterator(); it.hasNext(); ) {
+                Lookup lookup = it.next();
+                boolean[] dropped = { false };
+                pendingLookups.computeIfPresent(lookup.cell, (key, pending) -> {
+                    dropped[0] = pending == lookup && lookup.allEnded();
+                    return dropped[0] ? null : pending;
+                });
+
+                if (dropped[0]) {
+                    skippedCount.add(lookup.waiters().size());
+                    it.remove();
+                }
+            }
+        }
+
+        private void fetch(List<Lookup> batch) {
+            logger.info("Fetching better estimates from DynamoDB for " + batch.size() + " requests");
+            List<Optional<MethodCountStats>> stats = AwsMetricDownloader.getMethodCountStatsForRequests(
+                batch.stream().map(lookup -> lookup.firstWaiter().request.params()).collect(Collectors.toList()));
+
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                Lookup lookup = batch.get(i);
+                // no more joins: the waiters are final
+                pendingLookups.remove(lookup.cell, lookup);
+
+                for (Waiter waiter : lookup.waiters()) {
+                    latency.record(now - waiter.queuedAt);
+                    if (!stats.get(i).isPresent()) {
+                        continue;
+                    }
+
+                    Request req = waiter.request;
+                    if (req.hasEnded()) {
+                        lateCount.increment();
+                    } else {
+                        req.getInstance().updateRequestEstimate(req, riskAdjustedEstimate(stats.get(i).get()));
+                        updatedCount.increment();
                     }
                 }
             }
         }
     }
+
+    private static class Waiter {
+        private final Request request;
+        private final long queuedAt = System.nanoTime();
+
+        Waiter(Request request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * A pending lookup of the statistics of a cell, for all the requests waiting for it
+     */
+    private static class Lookup {
+        private final String cell;
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        Lookup(String cell, Waiter first) {
+            this.cell = cell;
+            this.waiters.add(first);
+        }
+
+        synchronized void join(Waiter waiter) {
+            waiters.add(waiter);
+        }
+
+        synchronized Waiter firstWaiter() {
+            return waiters.get(0);
+        }
+
+        synchronized List<Waiter> waiters() {
+            return new ArrayList<>(waiters);
+        }
+
+        synchronized boolean allEnded() {
+            for (Waiter waiter : waiters) {
+                if (!waiter.request.hasEnded()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records latencies, summarizing them as their average and maximum since the last summary
+     */
+    private static class LatencyRecorder {
+        private long count = 0;
+        private long total = 0;
+        private long max = 0;
+
+        synchronized void record(long nanos) {
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        synchronized String summarizeAndReset() {
+            String summary = count == 0 ? "no latency samples"
+                : String.format("latency avg %.1f ms, max %.1f ms", total / 1e6 / count, max / 1e6);
+            count = 0;
+            total = 0;
+            max = 0;
+            return summary;
+        }
+    }
 }
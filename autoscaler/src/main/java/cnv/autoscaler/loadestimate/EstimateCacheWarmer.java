@@ -0,0 +1,80 @@
+package cnv.autoscaler.loadestimate;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cnv.autoscaler.aws.AwsMetricDownloader;
+
+/**
+ * Fills a FastEstimator's cache with the metrics stored by the web servers, so that a restarted load balancer has
+ * estimates for the usual requests from the start, instead of using the regression model (and queueing a DynamoDB
+ * lookup) for all of them.
+ *
+ * The metrics table is read as a parallel scan, one thread per segment, for at most the time budget (or until the
+ * cache is full): scans still running then stop after their current page, while the load balancer starts.
+ */
+public class EstimateCacheWarmer {
+    private final Logger logger = Logger.getLogger(EstimateCacheWarmer.class.getName());
+
+    private final FastEstimator estimator;
+    private final int segments;
+    private final long budgetMillis;
+
+    /**
+     * @param estimator the estimator to warm up
+     * @param segments the number of segments the metrics table is read in, in parallel
+     * @param budgetMillis how long warming up may take
+     */
+    public EstimateCacheWarmer(FastEstimator estimator, int segments, long budgetMillis) {
+        this.estimator = estimator;
+        this.segments = segments;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Loads the stored metrics into the cache, blocking for at most the time budget.
+     * @return the number of metrics loaded
+     */
+    public int warmUp() {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final AtomicInteger loaded = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(segments);
+
+        for (int i = 0; i < segments; i++) {
+            final int segment = i;
+            Thread worker = new Thread(() -> {
+                try {
+                    AwsMetricDownloader.scanMetrics(segment, segments,
+                        () -> !stopped.get() && System.nanoTime() < deadline && !estimator.isCacheFull(),
+                        (requestParams, methodCount) -> {
+                            estimator.putInCache(requestParams, methodCount);
+                            loaded.incrementAndGet();
+                        });
+                } catch (RuntimeException | LinkageError e) {
+                    logger.log(Level.WARNING, "Could not load the stored metrics of segment " + segment, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "EstimateCacheWarmer segment " + segment);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        try {
+            if (!done.await(budgetMillis, TimeUnit.MILLISECONDS)) {
+                logger.info("Estimate cache warm-up ran out of time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopped.set(true);
+
+        logger.info(String.format("Loaded %d stored metrics into the estimate cache", loaded.get()));
+        return loaded.get();
+    }
+}
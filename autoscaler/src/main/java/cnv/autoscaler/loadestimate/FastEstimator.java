@@ -4,26 +4,53 @@ import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import cnv.autoscaler.loadbalancer.RequestParams;
 
-import java.util.OptionalDouble;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Objects;
 import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Implements a fast load estimator. Two fast methods are available, an estimate based on a linear regression model and
  * an estimate based on previous requests and a cache.
- * The fields {grid,prog,greedy}{A, B} correspond to the linear regression coefficients, taking the form
- * A*(viewport_area) + B, for each of the available strategies, grid-scan, progressive-scan and greedy-scan.
+ * The regression model is learned online (see OnlineEstimator) from the method counts of the requests that ended,
+ * starting from the coefficients {grid,prog,greedy}{A, B}, taking the form A*(viewport_area) + B, for each of the
+ * available strategies, grid-scan, progressive-scan and greedy-scan. With lb.estimator.checkpoint set to a file, the
+ * learned model is saved there every CHECKPOINT_PERIOD_SECONDS (and on exit), and loaded from it at startup.
+ *
+ * The cached requests are also kept in a spatial index, a hash of grid cells over their (x0, x1, y0, y1) coordinates
+ * per algorithm and image, with cells as wide as RequestParams.POSITION_THRESHOLD: the requests similar to a given one
+ * can only be in its cell or in the adjacent ones, so finding them does not depend on the size of the cache.
  */
 public class FastEstimator {
-    private final double gridA;
-    private final double gridB;
-    private final double progA;
-    private final double progB;
-    private final double greedyA;
-    private final double greedyB;
-
-    private static final int CACHE_SIZE = 512;
+    private static final Logger logger = Logger.getLogger(FastEstimator.class.getName());
+
+    private static final long CHECKPOINT_PERIOD_SECONDS = 60;
+
+    private final OnlineEstimator model = new OnlineEstimator();
+    private final AtomicBoolean learnedSinceCheckpoint = new AtomicBoolean(false);
+
+    private static final int CACHE_SIZE = 128 * 1024;
+    private static final long CELL_SIZE = RequestParams.POSITION_THRESHOLD;
     private final Cache<RequestParams, Long> estimateCache;
 
+    /**
+     * The keys of estimateCache by grid cell. A key is added within the cache's atomic compute for it, and removed by
+     * the eviction listener, which also runs within the atomic operation evicting it, so for each key the index
+     * follows the cache
+     */
+    private final Map<Cell, Set<RequestParams>> spatialIndex = new ConcurrentHashMap<>();
+
     /**
      * Creates a FastEstimator with a fixed set of coefficients. The coefficients were chosen through experimental
      * analysis and fitting a linear regression model to a large number of previous requests.
@@ -36,46 +63,54 @@ public class FastEstimator {
 
     /**
      * Initializes the FastEstimator with given model coefficients and creates a LRU cache which keeps up to
-     * CACHE_SIZE entries. This cache is thread-safe, using a ConcurrentHashmap underneath.
+     * CACHE_SIZE entries, and its spatial index. This cache is thread-safe, using a ConcurrentHashmap underneath.
+     * The model is restored from the checkpoint, if there is one.
      * @see <a href="https://github.com/ben-manes/caffeine/issues/392">Caffeinne thread-safety statement</a>
      */
     public FastEstimator (double gridA, double gridB, double progA, double progB, double greedyA, double greedyB) {
-        this.gridA = gridA;
-        this.gridB = gridB;
-        this.progA = progA;
-        this.progB = progB;
-        this.greedyA = greedyA;
-        this.greedyB = greedyB;
+        model.setPrior("GRID_SCAN", gridA, gridB);
+        model.setPrior("PROGRESSIVE_SCAN", progA, progB);
+        model.setPrior("GREEDY_RANGE_SCAN", greedyA, greedyB);
+
+        String checkpoint = System.getProperty("lb.estimator.checkpoint", "");
+        if (!checkpoint.isEmpty()) {
+            startCheckpointing(Paths.get(checkpoint));
+        }
+
         this.estimateCache = Caffeine.newBuilder()
             .maximumSize(CACHE_SIZE)
+            .<RequestParams, Long>evictionListener((requestParams, loadEstimate, cause) -> unindex(requestParams))
             .build();
     }
 
     /**
-     * Estimates the method count for a given viewportArea using the linear regression model.
-     * @param algo the search algorithm used: "GRID_SCAN", "PROGRESSIVE_SCAN" or "GREEDY_RANGE_SCAN"
-     * @param viewportArea the size of the viewport area
+     * Estimates the method count for a given request using the linear regression model.
+     * @param requestParams the request's parameters, with the search algorithm used: "GRID_SCAN", "PROGRESSIVE_SCAN"
+     *                      or "GREEDY_RANGE_SCAN"
      * @return the number of estimate method counts for the given parameters
      */
-    public long estimateMethodCount(String algo, long viewportArea) {
-        switch (algo) {
-            case "GRID_SCAN":
-                return Math.round(gridA * viewportArea + gridB);
-            case "PROGRESSIVE_SCAN":
-                return Math.round(progA * viewportArea + progB);
-            case "GREEDY_RANGE_SCAN":
-                return Math.round(greedyA * viewportArea + greedyB);
-            default:
-                return 1; // will just error out in the web server
-        }
+    public long estimateMethodCount(RequestParams requestParams) {
+        return model.estimateMethodCount(requestParams)
+            .orElse(1); // unknown algorithm: will just error out in the web server
+    }
+
+    /**
+     * Refits the linear regression model with the method count a request actually had.
+     * @param requestParams the request's parameters
+     * @param methodCount the method count reported by the web server
+     */
+    public void learn(RequestParams requestParams, long methodCount) {
+        model.learn(requestParams, methodCount);
+        learnedSinceCheckpoint.set(true);
     }
 
     /**
      * Gets an estimate for a given RequestParams using the cache. It first checks whether an exactly equal request
      * is present in the cache, returning its value if it is, making it the most recently used item. If there is not,
-     * similar requests are searched for and their average is used to compute an estimate, the position of those
-     * RequestParams on the cache remain in the same place to avoid filling the cache with similar requests. If no
-     * similar requests are found, an empty optional is returned indicating that no estimate could be found.
+     * similar requests are searched for (in the spatial index) and their average is used to compute an estimate, the
+     * position of those RequestParams on the cache remain in the same place to avoid filling the cache with similar
+     * requests. If no similar requests are found, an empty optional is returned indicating that no estimate could be
+     * found.
      * @param requestParams the corresponding RequestParams
      * @return the load estimate, if obtainable. Empty if no similar requests are in the cache
      */
@@ -85,15 +120,38 @@ public class FastEstimator {
             return OptionalLong.of(value);
         }
 
-        OptionalDouble estimate = estimateCache.asMap().entrySet().stream()
-            .filter(r -> requestParams.similarTo(r.getKey()))
-            .mapToDouble(r -> Double.valueOf(r.getValue()))
-            .average();
+        double sum = 0;
+        long count = 0;
+        Cell cell = Cell.of(requestParams);
+        for (long dx0 = -1; dx0 <= 1; dx0++) {
+            for (long dx1 = -1; dx1 <= 1; dx1++) {
+                for (long dy0 = -1; dy0 <= 1; dy0++) {
+                    for (long dy1 = -1; dy1 <= 1; dy1++) {
+                        Set<RequestParams> candidates = spatialIndex.get(cell.neighbour(dx0, dx1, dy0, dy1));
+                        if (candidates == null) {
+                            continue;
+                        }
+
+                        for (RequestParams candidate : candidates) {
+                            if (!requestParams.similarTo(candidate)) {
+                                continue;
+                            }
+                            // quietly: similar requests keep their place in the cache
+                            Long candidateValue = estimateCache.policy().getIfPresentQuietly(candidate);
+                            if (candidateValue != null) {
+                                sum += candidateValue;
+                                count++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
 
-        if (!estimate.isPresent()) {
+        if (count == 0) {
             return OptionalLong.empty();
         } else {
-            return OptionalLong.of(Math.round(estimate.getAsDouble()));
+            return OptionalLong.of(Math.round(sum / count));
         }
     }
 
@@ -104,6 +162,112 @@ public class FastEstimator {
      * @param loadEstimate the corresponding loadEstimate
      */
     public void putInCache(RequestParams requestParams, long loadEstimate) {
-        estimateCache.put(requestParams, loadEstimate);
+        estimateCache.asMap().compute(requestParams, (key, previous) -> {
+            if (previous == null) {
+                // added within the cell's atomic update, so a concurrent unindex can't drop the set in between
+                spatialIndex.compute(Cell.of(key), (cell, requests) -> {
+                    if (requests == null) {
+                        requests = ConcurrentHashMap.newKeySet();
+                    }
+                    requests.add(key);
+                    return requests;
+                });
+            }
+            return loadEstimate;
+        });
+    }
+
+    /**
+     * @return whether the cache is (about) full, so that more entries evict others
+     */
+    public boolean isCacheFull() {
+        return estimateCache.estimatedSize() >= CACHE_SIZE;
+    }
+
+    private void startCheckpointing(Path path) {
+        if (Files.exists(path)) {
+            try {
+                model.restore(path);
+                logger.info("Restored the load estimation model from " + path);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not restore the load estimation model from " + path
+                    + ", starting from the default one", e);
+            }
+        }
+
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "estimator-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> checkpoint(path),
+            CHECKPOINT_PERIOD_SECONDS, CHECKPOINT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> checkpoint(path), "estimator-checkpointer-shutdown"));
+    }
+
+    private synchronized void checkpoint(Path path) {
+        if (!learnedSinceCheckpoint.getAndSet(false)) {
+            return;
+        }
+
+        try {
+            model.checkpoint(path);
+        } catch (IOException e) {
+            learnedSinceCheckpoint.set(true); // retry next time
+            logger.log(Level.WARNING, "Could not checkpoint the load estimation model to " + path, e);
+        }
+    }
+
+    private void unindex(RequestParams requestParams) {
+        spatialIndex.computeIfPresent(Cell.of(requestParams), (cell, requests) -> {
+            requests.remove(requestParams);
+            return requests.isEmpty() ? null : requests;
+        });
+    }
+
+    /**
+     * A cell of the spatial index: an algorithm and image, and a CELL_SIZE-wide range of each coordinate
+     */
+    private static class Cell {
+        private final String algo;
+        private final String imagePath;
+        private final long x0;
+        private final long x1;
+        private final long y0;
+        private final long y1;
+
+        private Cell(String algo, String imagePath, long x0, long x1, long y0, long y1) {
+            this.algo = algo;
+            this.imagePath = imagePath;
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        static Cell of(RequestParams requestParams) {
+            return new Cell(requestParams.algo, requestParams.imagePath,
+                Math.floorDiv(requestParams.x0, CELL_SIZE), Math.floorDiv(requestParams.x1, CELL_SIZE),
+                Math.floorDiv(requestParams.y0, CELL_SIZE), Math.floorDiv(requestParams.y1, CELL_SIZE));
+        }
+
+        Cell neighbour(long dx0, long dx1, long dy0, long dy1) {
+            return new Cell(algo, imagePath, x0 + dx0, x1 + dx1, y0 + dy0, y1 + dy1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Cell)) {
+                return false;
+            }
+            Cell other = (Cell) o;
+            return x0 == other.x0 && x1 == other.x1 && y0 == other.y0 && y1 == other.y1
+                && Objects.equals(algo, other.algo) && Objects.equals(imagePath, other.imagePath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(x0, x1, y0, y1, algo, imagePath);
+        }
     }
 }
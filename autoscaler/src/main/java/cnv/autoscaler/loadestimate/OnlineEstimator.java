@@ -0,0 +1,285 @@
+package cnv.autoscaler.loadestimate;
+
+import cnv.autoscaler.loadbalancer.RequestParams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Linear models of the method count of a request, one per algorithm, refit online from the method counts the web
+ * servers report (X-Method-Count) with recursive least squares: each observation updates the coefficients in
+ * O(N_FEATURES^2), without keeping past requests, and older observations are slowly forgotten (FORGETTING_FACTOR), so
+ * the models follow changes in the workload and in the web servers.
+ *
+ * Besides the viewport area (the only input of the offline regression), the features include the image's size and
+ * type, and how far from the viewport's centre the scan starts. Each model starts from a prior (the offline
+ * coefficients), so it is usable before any observation.
+ *
+ * Thread-safety: estimates are lock-free, reading an immutable snapshot of the model, which updates replace; updates
+ * to the same model are serialized.
+ */
+public class OnlineEstimator {
+    static final int N_FEATURES = 7;
+
+    // features and counts are in millions, keeping the covariance matrix well-conditioned
+    private static final double SCALE = 1e6;
+    private static final double FORGETTING_FACTOR = 0.999;
+    // how much the prior is trusted: the lower, the more the first observations move the coefficients
+    private static final double PRIOR_VARIANCE = 10;
+    // bounds the covariance of features that never vary (e.g. only Voronoi images), which forgetting would blow up
+    private static final double MAX_COVARIANCE_TRACE = 1e6;
+
+    private static final int CHECKPOINT_MAGIC = 0x4f4c4553; // "OLES"
+
+    private final Map<String, Model> models = new ConcurrentHashMap<>();
+
+    /**
+     * Sets an algorithm's model to the linear regression A*(viewport_area) + B, forgetting what it learned.
+     * @param algo the search algorithm
+     * @param a the method count per unit of viewport area
+     * @param b the method count of an empty viewport
+     */
+    public void setPrior(String algo, double a, double b) {
+        double[] coefficients = new double[N_FEATURES];
+        coefficients[0] = b / SCALE;
+        coefficients[1] = a;
+        models.put(algo, new Model(new Snapshot(coefficients, scaledIdentity(PRIOR_VARIANCE), 0)));
+    }
+
+    /**
+     * @param requestParams the request's parameters
+     * @return the estimated method count. Empty if there is no model for the request's algorithm
+     */
+    public OptionalLong estimateMethodCount(RequestParams requestParams) {
+        Model model = requestParams.algo == null ? null : models.get(requestParams.algo);
+        if (model == null) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(Math.round(model.snapshot.predict(features(requestParams)) * SCALE));
+    }
+
+    /**
+     * Refits the request's algorithm's model with the method count the request actually had.
+     * @param requestParams the request's parameters
+     * @param methodCount the method count reported by the web server
+     */
+    public void learn(RequestParams requestParams, long methodCount) {
+        Model model = requestParams.algo == null ? null : models.get(requestParams.algo);
+        if (model != null) {
+            model.update(features(requestParams), methodCount / SCALE);
+        }
+    }
+
+    /**
+     * @return the number of observations learned for the algorithm (since the prior was set)
+     */
+    public long observations(String algo) {
+        Model model = models.get(algo);
+        return model == null ? 0 : model.snapshot.observations;
+    }
+
+    static double[] features(RequestParams requestParams) {
+        double area = requestParams.viewportArea() / SCALE;
+        double imageSize = Math.max(requestParams.width * requestParams.height, 0) / SCALE;
+
+        // distance from the start to the viewport's centre, relative to the half-diagonal: 0 at the centre, 1 at a
+        // corner. Weighted by the area, as that is what it changes (how much is scanned before finding the targets)
+        double halfWidth = (requestParams.x1 - requestParams.x0) / 2.0;
+        double halfHeight = (requestParams.y1 - requestParams.y0) / 2.0;
+        double startOffset = 0;
+        if (halfWidth > 0 && halfHeight > 0) {
+            double dx = requestParams.xS - (requestParams.x0 + halfWidth);
+            double dy = requestParams.yS - (requestParams.y0 + halfHeight);
+            startOffset = Math.min(Math.hypot(dx, dy) / Math.hypot(halfWidth, halfHeight), 1);
+        }
+
+        String image = requestParams.imagePath == null ? "" : requestParams.imagePath;
+        return new double[] {
+            1,
+            area,
+            Math.sqrt(area),
+            imageSize,
+            image.contains("VORONOI") ? 1 : 0,
+            image.contains("RECURSIVE_SQUARE") ? 1 : 0,
+            startOffset * area,
+        };
+    }
+
+    /**
+     * Writes all models to a file, atomically replacing it.
+     */
+    public void checkpoint(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            writeTo(out);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the models with the ones in a checkpoint file.
+     * @throws IOException if the file can not be read or is not a checkpoint (of these features)
+     */
+    public void restore(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            readFrom(in);
+        }
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(N_FEATURES);
+        // a consistent count, even if models are added meanwhile
+        Map<String, Snapshot> snapshots = new HashMap<>();
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot);
+        }
+
+        out.writeInt(snapshots.size());
+        for (Map.Entry<String, Snapshot> entry : snapshots.entrySet()) {
+            Snapshot snapshot = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(snapshot.observations);
+            for (double c : snapshot.coefficients) {
+                out.writeDouble(c);
+            }
+            for (double c : snapshot.covariance) {
+                out.writeDouble(c);
+            }
+        }
+    }
+
+    private void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != N_FEATURES) {
+            throw new IOException("not an estimator checkpoint, or of different features");
+        }
+
+        // read it all before replacing anything, so a truncated file changes nothing
+        Map<String, Snapshot> restored = new HashMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String algo = in.readUTF().intern();
+            long observations = in.readLong();
+            double[] coefficients = new double[N_FEATURES];
+            for (int j = 0; j < coefficients.length; j++) {
+                coefficients[j] = in.readDouble();
+            }
+            double[] covariance = new double[N_FEATURES * N_FEATURES];
+            for (int j = 0; j < covariance.length; j++) {
+                covariance[j] = in.readDouble();
+            }
+            restored.put(algo, new Snapshot(coefficients, covariance, observations));
+        }
+
+        for (Map.Entry<String, Snapshot> entry : restored.entrySet()) {
+            models.put(entry.getKey(), new Model(entry.getValue()));
+        }
+    }
+
+    private static double[] scaledIdentity(double value) {
+        double[] matrix = new double[N_FEATURES * N_FEATURES];
+        for (int i = 0; i < N_FEATURES; i++) {
+            matrix[i * N_FEATURES + i] = value;
+        }
+        return matrix;
+    }
+
+    private static class Model {
+        private volatile Snapshot snapshot;
+
+        Model(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * One recursive least squares step, with x the features and y the (scaled) method count:
+         * k = P x / (lambda + x' P x), w += k (y - w' x), P = (P - k x' P) / lambda
+         */
+        synchronized void update(double[] x, double y) {
+            Snapshot current = snapshot;
+            double[] p = current.covariance;
+            int n = N_FEATURES;
+
+            double[] px = new double[n];
+            double xpx = 0;
+            for (int i = 0; i < n; i++) {
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    sum += p[i * n + j] * x[j];
+                }
+                px[i] = sum;
+                xpx += x[i] * sum;
+            }
+
+            double denominator = FORGETTING_FACTOR + xpx;
+            double error = y - current.predict(x);
+
+            double[] coefficients = new double[n];
+            for (int i = 0; i < n; i++) {
+                coefficients[i] = current.coefficients[i] + px[i] / denominator * error;
+            }
+
+            // P is symmetric, so x' P = (P x)'
+            double[] covariance = new double[n * n];
+            double trace = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    covariance[i * n + j] = (p[i * n + j] - px[i] * px[j] / denominator) / FORGETTING_FACTOR;
+                }
+                trace += covariance[i * n + i];
+            }
+            if (trace > MAX_COVARIANCE_TRACE) {
+                double factor = MAX_COVARIANCE_TRACE / trace;
+                for (int i = 0; i < covariance.length; i++) {
+                    covariance[i] *= factor;
+                }
+            }
+
+            if (isFinite(coefficients) && isFinite(covariance)) {
+                snapshot = new Snapshot(coefficients, covariance, current.observations + 1);
+            }
+        }
+
+        private static boolean isFinite(double[] values) {
+            for (double value : values) {
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A model's state. Never modified once published
+     */
+    private static class Snapshot {
+        private final double[] coefficients;
+        private final double[] covariance; // N_FEATURES x N_FEATURES, row-major
+        private final long observations;
+
+        Snapshot(double[] coefficients, double[] covariance, long observations) {
+            this.coefficients = coefficients;
+            this.covariance = covariance;
+            this.observations = observations;
+        }
+
+        double predict(double[] x) {
+            double sum = 0;
+            for (int i = 0; i < x.length; i++) {
+                sum += coefficients[i] * x[i];
+            }
+            return sum;
+        }
+    }
+}
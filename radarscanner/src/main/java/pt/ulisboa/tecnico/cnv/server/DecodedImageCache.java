@@ -0,0 +1,307 @@
+package pt.ulisboa.tecnico.cnv.server;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageInputStreamSpi;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Server-wide cache of decoded dataset images, keyed by their (absolute) path.
+ *
+ * The Solver (which we only have in bytecode form) reads its input map with ImageIO.read(File) and then copies it
+ * pixel by pixel into its own working image. By registering ImageIO plugins that take precedence over the default
+ * ones for File inputs, those reads are answered from this cache instead of decoding the PNG again.
+ * Cached images are shared between requests and must be treated as read-only: the Solver's copy is the per-request
+ * working raster.
+ *
+ * Thread-safety: the LRU map is guarded by this object's lock, concurrent loads of the same key are deduplicated
+ * through a map of pending FutureTasks so only one thread decodes a given image.
+ */
+public class DecodedImageCache {
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    /**
+     * Access-ordered, so iteration starts at the least recently used entry
+     */
+    private final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, FutureTask<BufferedImage>> pendingLoads = new ConcurrentHashMap<>();
+
+    public DecodedImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Registers the ImageIO plugins that redirect ImageIO.read(File) to this cache.
+     * They are ordered before every other plugin of the same category.
+     */
+    public void install() {
+        IIORegistry registry = IIORegistry.getDefaultInstance();
+
+        CachedFileStreamSpi streamSpi = new CachedFileStreamSpi();
+        registry.registerServiceProvider(streamSpi, ImageInputStreamSpi.class);
+        Iterator<ImageInputStreamSpi> streamSpis = registry.getServiceProviders(ImageInputStreamSpi.class, false);
+        while (streamSpis.hasNext()) {
+            ImageInputStreamSpi other = streamSpis.next();
+            if (other != streamSpi) {
+                registry.setOrdering(ImageInputStreamSpi.class, streamSpi, other);
+            }
+        }
+
+        CachedImageReaderSpi readerSpi = new CachedImageReaderSpi();
+        registry.registerServiceProvider(readerSpi, ImageReaderSpi.class);
+        Iterator<ImageReaderSpi> readerSpis = registry.getServiceProviders(ImageReaderSpi.class, false);
+        while (readerSpis.hasNext()) {
+            ImageReaderSpi other = readerSpis.next();
+            if (other != readerSpi) {
+                registry.setOrdering(ImageReaderSpi.class, readerSpi, other);
+            }
+        }
+    }
+
+    /**
+     * Gets the decoded image for a file, decoding it if needed. Concurrent calls for the same file share one decode.
+     * @param file the image file
+     * @return the (shared, read-only) decoded image
+     * @throws IOException if the image could not be read
+     */
+    public BufferedImage get(final File file) throws IOException {
+        final String key = file.getAbsolutePath();
+
+        synchronized (this) {
+            BufferedImage image = images.get(key);
+            if (image != null) {
+                return image;
+            }
+        }
+
+        FutureTask<BufferedImage> load = new FutureTask<>(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws IOException {
+                return decode(file);
+            }
+        });
+
+        FutureTask<BufferedImage> existingLoad = pendingLoads.putIfAbsent(key, load);
+        if (existingLoad != null) {
+            load = existingLoad;
+        } else {
+            load.run();
+        }
+
+        try {
+            BufferedImage image = load.get();
+            if (existingLoad == null) {
+                put(key, image);
+            }
+            return image;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for image " + key, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not decode image " + key, e.getCause());
+        } finally {
+            if (existingLoad == null) {
+                pendingLoads.remove(key, load);
+            }
+        }
+    }
+
+    /**
+     * Inserts an image, evicting least recently used images until it fits in the memory bound.
+     * Images larger than the whole cache are not kept.
+     */
+    private synchronized void put(String key, BufferedImage image) {
+        long weight = weightOf(image);
+        if (weight > maxBytes) {
+            return;
+        }
+
+        BufferedImage previous = images.put(key, image);
+        if (previous != null) {
+            currentBytes -= weightOf(previous);
+        }
+        currentBytes += weight;
+
+        Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, BufferedImage> eldest = it.next();
+            if (!eldest.getKey().equals(key)) {
+                currentBytes -= weightOf(eldest.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Decodes an image file with the regular ImageIO plugins, converting it to TYPE_INT_ARGB (the same type the
+     * Solver converts it to), so the alpha channel of RGBA images is kept.
+     */
+    private static BufferedImage decode(File file) throws IOException {
+        // a plain FileImageInputStream is not picked up by our reader, so this goes to the real PNG decoder
+        // note: ImageIO.read closes the stream, except when there is no suitable decoder
+        ImageInputStream stream = new FileImageInputStream(file);
+        BufferedImage decoded = ImageIO.read(stream);
+
+        if (decoded == null) {
+            stream.close();
+            throw new IIOException("No decoder for image " + file);
+        }
+        if (decoded.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return decoded;
+        }
+
+        // a bulk getRGB already yields packed ARGB pixels (opaque for images without alpha)
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        return new IntRaster(width, height, true, decoded.getRGB(0, 0, width, height, null, 0, width))
+                .toBufferedImage();
+    }
+
+    private static long weightOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Marker stream for File inputs, so that our reader knows which file to fetch from the cache.
+     * It is still a fully functional file stream in case some other reader ends up being used.
+     */
+    private static class CachedFileImageInputStream extends FileImageInputStream {
+        private final File file;
+
+        public CachedFileImageInputStream(File file) throws IOException {
+            super(file);
+            this.file = file;
+        }
+
+        public File getFile() {
+            return this.file;
+        }
+    }
+
+    private class CachedFileStreamSpi extends ImageInputStreamSpi {
+        public CachedFileStreamSpi() {
+            super("cnv", "1.0", File.class);
+        }
+
+        @Override
+        public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir)
+                throws IOException {
+            return new CachedFileImageInputStream((File) input);
+        }
+
+        @Override
+        public String getDescription(Locale locale) {
+            return "File stream for the decoded image cache";
+        }
+    }
+
+    private class CachedImageReaderSpi extends ImageReaderSpi {
+        public CachedImageReaderSpi() {
+            this.vendorName = "cnv";
+            this.version = "1.0";
+            this.names = new String[] { "cnv-cached" };
+            this.pluginClassName = CachedImageReader.class.getName();
+            this.inputTypes = new Class<?>[] { ImageInputStream.class };
+        }
+
+        @Override
+        public boolean canDecodeInput(Object source) {
+            return source instanceof CachedFileImageInputStream;
+        }
+
+        @Override
+        public ImageReader createReaderInstance(Object extension) {
+            return new CachedImageReader(this);
+        }
+
+        @Override
+        public String getDescription(Locale locale) {
+            return "Reader backed by the decoded image cache";
+        }
+    }
+
+    private class CachedImageReader extends ImageReader {
+        public CachedImageReader(ImageReaderSpi originatingProvider) {
+            super(originatingProvider);
+        }
+
+        private BufferedImage image() throws IOException {
+            if (!(this.input instanceof CachedFileImageInputStream)) {
+                throw new IllegalStateException("Input not set");
+            }
+            return DecodedImageCache.this.get(((CachedFileImageInputStream) this.input).getFile());
+        }
+
+        private void checkIndex(int imageIndex) {
+            if (imageIndex != 0) {
+                throw new IndexOutOfBoundsException("imageIndex != 0");
+            }
+        }
+
+        @Override
+        public int getNumImages(boolean allowSearch) {
+            return 1;
+        }
+
+        @Override
+        public int getWidth(int imageIndex) throws IOException {
+            checkIndex(imageIndex);
+            return image().getWidth();
+        }
+
+        @Override
+        public int getHeight(int imageIndex) throws IOException {
+            checkIndex(imageIndex);
+            return image().getHeight();
+        }
+
+        @Override
+        public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) {
+            checkIndex(imageIndex);
+            return Collections.singletonList(
+                    ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB)).iterator();
+        }
+
+        @Override
+        public IIOMetadata getStreamMetadata() {
+            return null;
+        }
+
+        @Override
+        public IIOMetadata getImageMetadata(int imageIndex) {
+            checkIndex(imageIndex);
+            return null;
+        }
+
+        @Override
+        public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
+            checkIndex(imageIndex);
+            return image();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package pt.ulisboa.tecnico.cnv.server;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * A packed (A)RGB raster backed by a flat int[], one int per pixel in row-major order.
+ *
+ * Per-pixel BufferedImage.getRGB/setRGB go through the ColorModel and allocate on every call. Images of
+ * TYPE_INT_RGB/TYPE_INT_ARGB are already backed by such an array, so wrapping them is zero-copy, and a raster can be
+ * turned back into a BufferedImage sharing the same array when something (e.g. an encoder) needs one.
+ */
+public class IntRaster {
+    private static final int ALPHA_MASK = 0xff000000;
+
+    private final int width;
+    private final int height;
+    private final boolean hasAlpha;
+    private final int[] data;
+
+    public IntRaster(int width, int height, boolean hasAlpha, int[] data) {
+        if (data.length < width * height) {
+            throw new IllegalArgumentException("raster data is smaller than width*height");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = hasAlpha;
+        this.data = data;
+    }
+
+    /**
+     * Gets a raster with the contents of an image. If the image is a packed int image with the standard layout, the
+     * raster shares the image's pixel array (writes are visible on both), otherwise the pixels are copied in bulk.
+     * @param image the image
+     * @return the corresponding raster
+     */
+    public static IntRaster of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int type = image.getType();
+
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            WritableRaster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            SampleModel sampleModel = raster.getSampleModel();
+
+            if (buffer instanceof DataBufferInt && buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                    && raster.getParent() == null && sampleModel instanceof SinglePixelPackedSampleModel
+                    && ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() == width) {
+                return new IntRaster(width, height, type == BufferedImage.TYPE_INT_ARGB,
+                        ((DataBufferInt) buffer).getData());
+            }
+        }
+
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        return new IntRaster(width, height, hasAlpha, image.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public boolean hasAlpha() {
+        return this.hasAlpha;
+    }
+
+    /**
+     * @return the backing array, row-major, width*height pixels
+     */
+    public int[] getData() {
+        return this.data;
+    }
+
+    /**
+     * @return a TYPE_INT_RGB or TYPE_INT_ARGB image sharing this raster's pixel array (no copy)
+     */
+    public BufferedImage toBufferedImage() {
+        DirectColorModel colorModel;
+        int[] masks;
+        if (this.hasAlpha) {
+            colorModel = new DirectColorModel(32, 0x00ff0000, 0x0000ff00, 0x000000ff, ALPHA_MASK);
+            masks = new int[] { 0x00ff0000, 0x0000ff00, 0x000000ff, ALPHA_MASK };
+        } else {
+            colorModel = new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff, 0);
+            masks = new int[] { 0x00ff0000, 0x0000ff00, 0x000000ff };
+        }
+
+        DataBufferInt buffer = new DataBufferInt(this.data, this.width * this.height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, this.width, this.height, this.width, masks,
+                new Point(0, 0));
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+}
@@ -0,0 +1,322 @@
+package pt.ulisboa.tecnico.cnv.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import pt.ulisboa.tecnico.cnv.server.MetricTracker.Metrics;
+
+/**
+ * Append-only journal of metrics that could not be uploaded yet, in a fixed-size memory-mapped file, so they survive
+ * store outages and server restarts.
+ *
+ * Layout: a header (magic, then the head and tail offsets packed in a single long) followed by a ring of records
+ * [length, crc32, serialized Metrics]. Records from head to tail are pending; acknowledging records moves the head
+ * forward. A record that doesn't fit before the end of the file goes at the start of the ring instead, if it fits
+ * before the head, and a wrap marker (a length of WRAP_MARKER, or just too little space left for a record header)
+ * sends readers there, so the whole file is usable whatever the position of the head. The tail never catches up
+ * with the head, which only happens when the journal is empty.
+ *
+ * The header is only updated after a record (and its wrap marker) is fully written, with one aligned 8-byte write,
+ * and records are checked against their CRC when the journal is opened, so a crash mid-append loses at most that
+ * record.
+ *
+ * Writes reach the page cache, not necessarily the disk: a server crash loses nothing, a host crash may.
+ *
+ * Thread-safety: all methods are synchronized.
+ */
+public class MetricJournal {
+    private static final int MAGIC = 0x4d4a4e32; // "MJN2"
+    private static final int POSITION_OFFSET = 8; // aligned, so the head and tail are written at once
+    private static final int HEADER_SIZE = POSITION_OFFSET + 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int WRAP_MARKER = -1;
+
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private int head;
+    private int tail;
+    private int pendingCount;
+
+    /**
+     * Opens (or creates) a journal, keeping the valid records already in it.
+     * @param path the journal file
+     * @param capacity the journal file size, in bytes
+     * @throws IOException if the file can't be mapped or is in use by another server
+     */
+    public MetricJournal(String path, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(path, "rw");
+
+        FileChannel channel = this.file.getChannel();
+        this.lock = channel.tryLock();
+        if (this.lock == null) {
+            this.file.close();
+            throw new IOException("Metric journal " + path + " is in use");
+        }
+
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        recover();
+    }
+
+    /**
+     * Stores a metric in the journal.
+     * @param metrics the metric
+     * @return false if the journal is full (the metric is not stored)
+     */
+    public synchronized boolean append(Metrics metrics) {
+        byte[] payload;
+        try {
+            payload = serialize(metrics);
+        } catch (IOException e) {
+            return false;
+        }
+
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (this.head == this.tail) {
+            this.head = HEADER_SIZE;
+            this.tail = HEADER_SIZE;
+        }
+
+        int offset;
+        if (this.tail >= this.head) {
+            if (this.tail + recordSize <= this.capacity) {
+                offset = this.tail;
+            } else if (HEADER_SIZE + recordSize < this.head) {
+                offset = HEADER_SIZE;
+            } else {
+                return false;
+            }
+        } else if (this.tail + recordSize < this.head) {
+            offset = this.tail;
+        } else {
+            return false;
+        }
+
+        this.buffer.putInt(offset, payload.length);
+        this.buffer.putInt(offset + 4, crc(payload));
+        writeBytes(offset + RECORD_HEADER_SIZE, payload);
+        if (offset != this.tail && this.tail + 4 <= this.capacity) {
+            this.buffer.putInt(this.tail, WRAP_MARKER);
+        }
+
+        this.tail = offset + recordSize;
+        this.pendingCount++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Reads the oldest pending metrics, without removing them from the journal.
+     * @param maxCount the maximum number of metrics to read
+     * @return the metrics, oldest first
+     */
+    public synchronized List<Metrics> peek(int maxCount) {
+        List<Metrics> metricsList = new ArrayList<>(Math.min(maxCount, this.pendingCount));
+        int offset = this.head;
+        while (metricsList.size() < maxCount) {
+            offset = skipWrap(offset);
+            if (offset == this.tail) {
+                break;
+            }
+
+            byte[] payload = readPayload(offset);
+            try {
+                metricsList.add(deserialize(payload));
+            } catch (IOException e) {
+                // can't happen for records that passed the CRC check, but don't get stuck on it either:
+                // stop before it, so the caller's acknowledge count stays aligned, and drop it once it's the oldest
+                if (offset != skipWrap(this.head)) {
+                    break;
+                }
+                System.err.println("Discarding unreadable journal record: " + e.getMessage());
+                this.head = offset + RECORD_HEADER_SIZE + payload.length;
+                this.pendingCount--;
+                writeHeader();
+            }
+            offset += RECORD_HEADER_SIZE + payload.length;
+        }
+        return metricsList;
+    }
+
+    /**
+     * Removes the oldest pending metrics, after they were uploaded.
+     * @param count how many metrics (as returned by peek) to remove
+     */
+    public synchronized void acknowledge(int count) {
+        for (int i = 0; i < count; i++) {
+            this.head = skipWrap(this.head);
+            if (this.head == this.tail) {
+                break;
+            }
+            this.head += RECORD_HEADER_SIZE + this.buffer.getInt(this.head);
+            this.pendingCount--;
+        }
+
+        if (this.head == this.tail) {
+            this.head = HEADER_SIZE;
+            this.tail = HEADER_SIZE;
+        }
+        writeHeader();
+    }
+
+    /**
+     * @return the number of pending metrics
+     */
+    public synchronized int size() {
+        return this.pendingCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.pendingCount == 0;
+    }
+
+    /**
+     * @return the offset of the record at offset, the start of the ring if offset is a wrap marker
+     */
+    private int skipWrap(int offset) {
+        if (offset != this.tail && isWrap(offset)) {
+            return HEADER_SIZE;
+        }
+        return offset;
+    }
+
+    private boolean isWrap(int offset) {
+        return offset + RECORD_HEADER_SIZE > this.capacity || this.buffer.getInt(offset) == WRAP_MARKER;
+    }
+
+    /**
+     * Loads the header and drops any records after the first corrupted one.
+     */
+    private void recover() {
+        this.head = HEADER_SIZE;
+        this.tail = HEADER_SIZE;
+        this.pendingCount = 0;
+        if (this.buffer.getInt(0) != MAGIC) {
+            writeHeader();
+            return;
+        }
+
+        long position = this.buffer.getLong(POSITION_OFFSET);
+        int storedHead = (int) (position >>> 32);
+        int storedTail = (int) position;
+        if (storedHead < HEADER_SIZE || storedHead > this.capacity
+                || storedTail < HEADER_SIZE || storedTail > this.capacity || storedHead == storedTail) {
+            writeHeader();
+            return;
+        }
+
+        // scan from the head to the end of its segment, then, if the ring wrapped, from the start to the tail
+        int offset = storedHead;
+        int limit = storedTail > storedHead ? storedTail : this.capacity;
+        boolean wrapped = false;
+        while (offset != storedTail) {
+            if (storedTail < storedHead && !wrapped && isWrap(offset)) {
+                offset = HEADER_SIZE;
+                limit = storedTail;
+                wrapped = true;
+                continue;
+            }
+
+            if (offset + RECORD_HEADER_SIZE > limit) {
+                break;
+            }
+            int length = this.buffer.getInt(offset);
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > limit) {
+                break;
+            }
+
+            byte[] payload = readPayload(offset);
+            if (crc(payload) != this.buffer.getInt(offset + 4)) {
+                break;
+            }
+
+            offset += RECORD_HEADER_SIZE + length;
+            this.pendingCount++;
+        }
+
+        if (offset != storedTail) {
+            System.err.printf("Metric journal: discarded the corrupted records after offset %d%n", offset);
+        }
+        if (this.pendingCount > 0) {
+            this.head = storedHead;
+            this.tail = offset;
+        }
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putLong(POSITION_OFFSET, ((long) this.head << 32) | (this.tail & 0xffffffffL));
+    }
+
+    private byte[] readPayload(int offset) {
+        byte[] payload = new byte[this.buffer.getInt(offset)];
+        readBytes(offset + RECORD_HEADER_SIZE, payload);
+        return payload;
+    }
+
+    private void readBytes(int offset, byte[] dst) {
+        ByteBuffer view = this.buffer.duplicate();
+        ((Buffer) view).position(offset); // Buffer's position(int), so the bytecode also links on Java 7
+        view.get(dst);
+    }
+
+    private void writeBytes(int offset, byte[] src) {
+        ByteBuffer view = this.buffer.duplicate();
+        ((Buffer) view).position(offset);
+        view.put(src);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] serialize(Metrics metrics) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+
+        dos.writeUTF(metrics.uploadId != null ? metrics.uploadId : "");
+        dos.writeInt(metrics.requestParams.length);
+        for (String param : metrics.requestParams) {
+            dos.writeUTF(param);
+        }
+        dos.writeLong(metrics.methodCount);
+        dos.writeLong(metrics.instructionCount);
+        dos.flush();
+
+        return bos.toByteArray();
+    }
+
+    private static Metrics deserialize(byte[] payload) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+
+        String uploadId = dis.readUTF();
+        String[] requestParams = new String[dis.readInt()];
+        for (int i = 0; i < requestParams.length; i++) {
+            requestParams[i] = dis.readUTF();
+        }
+
+        Metrics metrics = new Metrics(requestParams);
+        metrics.uploadId = uploadId.isEmpty() ? null : uploadId;
+        metrics.methodCount = dis.readLong();
+        metrics.instructionCount = dis.readLong();
+        return metrics;
+    }
+}
@@ -1,10 +1,20 @@
 package pt.ulisboa.tecnico.cnv.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
@@ -13,12 +23,23 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
-import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
 import com.amazonaws.services.dynamodbv2.util.TableUtils.TableNeverTransitionedToStateException;
 
@@ -29,23 +50,76 @@ import pt.ulisboa.tecnico.cnv.solver.SolverArgumentParser;
  * Responsible for uploading the metrics to the Metric Storage System (MSS) that is AmazonDynamoDB
  * At initialization it verifies and/or creates the table where the metrics are stored.
  * Each metric has an ID associated, that is randomly generated on insertion.
- * This uploader operates on its own thread, uploading a metric whenever a new metric is added, so it doesn't block.
+ * This uploader operates on its own thread, so it doesn't block: queued metrics are coalesced into BatchWriteItem
+ * calls of up to MAX_BATCH_SIZE items, flushed when the batch is full or FLUSH_INTERVAL_MS after its first item.
+ *
+ * Items DynamoDB does not process (throttling) are retried with exponential backoff until they are written, while
+ * new metrics keep queueing up. If the queue fills up (a long outage) or a batch keeps failing with a non-throttling
+ * error, the metrics are spilled to a local MetricJournal and replayed once the store accepts writes again (and the
+ * queue is idle). Metrics are only dropped, and counted as such, when the journal is full or unavailable.
+ *
+ * Besides its id, each metric is keyed for the load balancer's lookups of similar requests (LOOKUP_INDEX_NAME): by
+ * lookupKey, the strategy, image and LOOKUP_BUCKET_SIZE-wide bucket of (x0, y0), and sorted by x1. Both must match
+ * the load balancer's (AwsMetricDownloader).
+ *
+ * The metrics are also rolled up, per cell of STATS_BUCKET_SIZE-wide buckets of each position (and strategy and image),
+ * into the count, sum, sum of squares and maximum of their method counts, in a separate table: once a batch is
+ * written, its metrics are coalesced by cell and added with one atomic update per cell, so the load balancer gets the
+ * statistics of similar requests with a single read. The maximum is only written, in the same update, when the batch's
+ * beats the last one seen for the cell. Updates are retried with the same backoff as the batch writes; the metrics of
+ * the cells that still fail are spilled to the journal, so they are written again (overwriting the same item) and
+ * counted on replay. The statistics are still best-effort: an update whose response was lost, or a metric replayed
+ * from the journal after a crash, may be counted twice.
  */
 public class MetricUploader {
+    private static final int MAX_BATCH_SIZE = 25; // BatchWriteItem limit
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final int MAX_QUEUE_SIZE = 16 * 1024; // a few MiB of metrics
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 10 * 1000;
+    private static final int MAX_FAILED_ATTEMPTS = 8;
+    private static final long JOURNAL_REPLAY_INTERVAL_MS = MAX_BACKOFF_MS;
+    private static final int MAX_KNOWN_MAXIMA = 4096; // cells whose stored maximum is remembered
+
+    static final String LOOKUP_INDEX_NAME = "lookup-index";
+    static final int LOOKUP_BUCKET_SIZE = 64;
+    static final int STATS_BUCKET_SIZE = 32;
+
     private AmazonDynamoDB dynamoDBClient;
     private String tableName = System.getProperty("mss.dynamodb.tablename", "radarscanner-metrics");
+    private String statsTableName = System.getProperty("mss.dynamodb.statstablename", "radarscanner-metrics-stats");
 
-    private ConcurrentLinkedQueue<Metrics> uploadQueue = new ConcurrentLinkedQueue<>();
-    private Semaphore queueNotEmpty = new Semaphore(0);
-    private int MAX_QUEUE_SIZE = 32;
+    private BlockingQueue<Metrics> uploadQueue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+    private final AtomicLong uploadedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong failedStatsCount = new AtomicLong(0);
+
+    private MetricJournal journal = null;
 
     private Thread workerThread;
 
     public MetricUploader() throws InterruptedException, TableNeverTransitionedToStateException {
         this.dynamoDBClient = createDynamoDBClient();
         ensureTableActive(this.dynamoDBClient, this.tableName);
+        ensureStatsTableActive(this.dynamoDBClient, this.statsTableName);
+
+        // an empty path disables the journal
+        String journalPath = System.getProperty("mss.journal.path",
+                System.getProperty("java.io.tmpdir") + File.separator + "radarscanner-metrics.journal");
+        if (!journalPath.isEmpty()) {
+            int journalSize = Integer.getInteger("mss.journal.size", 8 * 1024 * 1024);
+            try {
+                this.journal = new MetricJournal(journalPath, journalSize);
+                if (!this.journal.isEmpty()) {
+                    System.out.println("> " + this.journal.size() + " metrics pending upload in the journal");
+                }
+            } catch (IOException e) {
+                System.err.println("Metric journal unavailable, metrics may be lost: " + e.getMessage());
+            }
+        }
 
-        this.workerThread = new Thread(new Worker());
+        this.workerThread = new Thread(new Worker(), "MetricUploader worker");
+        this.workerThread.setDaemon(true);
         this.workerThread.start();
     }
 
@@ -67,7 +141,17 @@ public class MetricUploader {
         CreateTableRequest createTableRequest = new CreateTableRequest().withTableName(tableName)
                 .withKeySchema(new KeySchemaElement().withAttributeName("id").withKeyType(KeyType.HASH))
                 .withAttributeDefinitions(
-                        new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S))
+                        new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S),
+                        new AttributeDefinition().withAttributeName("lookupKey").withAttributeType(ScalarAttributeType.S),
+                        new AttributeDefinition().withAttributeName("args.x1").withAttributeType(ScalarAttributeType.N))
+                .withGlobalSecondaryIndexes(new GlobalSecondaryIndex().withIndexName(LOOKUP_INDEX_NAME)
+                        .withKeySchema(
+                                new KeySchemaElement().withAttributeName("lookupKey").withKeyType(KeyType.HASH),
+                                new KeySchemaElement().withAttributeName("args.x1").withKeyType(KeyType.RANGE))
+                        .withProjection(new Projection().withProjectionType(ProjectionType.INCLUDE)
+                                .withNonKeyAttributes("args.x0", "args.y0", "args.y1", "methodCount"))
+                        .withProvisionedThroughput(
+                                new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L)))
                 .withProvisionedThroughput(
                         new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
 
@@ -77,6 +161,19 @@ public class MetricUploader {
         TableUtils.waitUntilActive(client, tableName);
     }
 
+    private static void ensureStatsTableActive(AmazonDynamoDB client, String tableName)
+            throws InterruptedException, TableNeverTransitionedToStateException {
+        CreateTableRequest createTableRequest = new CreateTableRequest().withTableName(tableName)
+                .withKeySchema(new KeySchemaElement().withAttributeName("cell").withKeyType(KeyType.HASH))
+                .withAttributeDefinitions(
+                        new AttributeDefinition().withAttributeName("cell").withAttributeType(ScalarAttributeType.S))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
+
+        TableUtils.createTableIfNotExists(client, createTableRequest);
+        TableUtils.waitUntilActive(client, tableName);
+    }
+
     /**
      * Uploads a metric to the MSS
      * Never blocks.
@@ -84,42 +181,316 @@ public class MetricUploader {
      * @param metrics
      */
     public void upload(Metrics metrics) {
-        if (uploadQueue.size() > MAX_QUEUE_SIZE) {
-            // try to keep queue with a reasonable size
-            System.err.println("Discarding metrics: too many items in queue");
-        } else {
-            uploadQueue.add(metrics);
-
-            if (queueNotEmpty.availablePermits() <= 0) {
-                // try to not issue too many permits (>1 make the worker spin needlessly)
-                queueNotEmpty.release();
-            }
+        if (!uploadQueue.offer(metrics)) {
+            spill(metrics, "upload queue is full");
+        }
+    }
+
+    /**
+     * Stores a metric that can't be uploaded now in the journal, or drops it if that is not possible.
+     */
+    private void spill(Metrics metrics, String reason) {
+        if (journal == null || !journal.append(metrics)) {
+            droppedCount.incrementAndGet();
+            System.err.println("Discarding metrics: " + reason);
         }
     }
 
     /**
-     * Worker thread that keeps waiting for metrics to be added so it can upload to the MSS, without blocking
+     * @return the number of metrics waiting to be uploaded (not counting the batch being written), including the
+     * ones in the journal
+     */
+    public int getQueueDepth() {
+        return uploadQueue.size() + (journal != null ? journal.size() : 0);
+    }
+
+    /**
+     * @return the number of metrics written to the MSS so far
+     */
+    public long getUploadedCount() {
+        return uploadedCount.get();
+    }
+
+    /**
+     * @return the number of metrics discarded so far
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of metrics left out of the statistics so far
+     */
+    public long getFailedStatsCount() {
+        return failedStatsCount.get();
+    }
+
+    /**
+     * Worker thread that keeps waiting for metrics to be added so it can upload them to the MSS in batches, without
+     * blocking
      */
     private class Worker implements Runnable {
+        private long nextReplayTime = 0;
+
+        /** the highest maximum known to be stored for the most recently updated cells */
+        private final Map<String, Long> knownMaxima = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_KNOWN_MAXIMA;
+            }
+        };
+
         public void run() {
-            Metrics metrics;
+            List<Metrics> batch = new ArrayList<>(MAX_BATCH_SIZE);
             while (true) {
                 try {
-                    queueNotEmpty.acquire();
+                    if (journal != null && !journal.isEmpty() && uploadQueue.isEmpty()
+                            && System.currentTimeMillis() >= nextReplayTime) {
+                        replayJournal();
+                        continue;
+                    }
+
+                    if (!fillBatch(batch)) {
+                        continue;
+                    }
+                    List<Metrics> failed = writeBatch(batch);
+                    for (Metrics metrics : failed) {
+                        spill(metrics, "could not be uploaded");
+                    }
+                    batch.removeAll(failed);
+                    updateStats(batch);
                 } catch (InterruptedException ignored) {
+                } catch (Exception e) {
+                    // never let the worker die, whatever happened to the batch is already accounted for
+                    System.err.println("Could not upload metrics: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Uploads the oldest batch of journaled metrics, removing them from the journal once they are written.
+         * After a failure, the journal is left alone for JOURNAL_REPLAY_INTERVAL_MS.
+         */
+        private void replayJournal() throws InterruptedException {
+            List<Metrics> batch = journal.peek(MAX_BATCH_SIZE);
+            if (writeBatch(batch).isEmpty()) {
+                journal.acknowledge(batch.size());
+                updateStats(batch);
+            } else {
+                nextReplayTime = System.currentTimeMillis() + JOURNAL_REPLAY_INTERVAL_MS;
+            }
+        }
+
+        /**
+         * Waits for the first metric, then gathers more until the batch is full or FLUSH_INTERVAL_MS went by.
+         * While the journal has metrics to replay, it doesn't wait longer than FLUSH_INTERVAL_MS for the first one.
+         * @return false if no metric arrived
+         */
+        private boolean fillBatch(List<Metrics> batch) throws InterruptedException {
+            Metrics first;
+            if (journal != null && !journal.isEmpty()) {
+                first = uploadQueue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } else {
+                first = uploadQueue.take();
+            }
+            if (first == null) {
+                return false;
+            }
+            batch.add(first);
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+            while (batch.size() < MAX_BATCH_SIZE) {
+                uploadQueue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                long remaining = deadline - System.nanoTime();
+                if (batch.size() >= MAX_BATCH_SIZE || remaining <= 0) {
+                    break;
+                }
+
+                Metrics metrics = uploadQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (metrics == null) {
+                    break;
+                }
+                batch.add(metrics);
+            }
+            return true;
+        }
+
+        /**
+         * Writes a batch, retrying unprocessed items (and throttled calls) with exponential backoff until all are
+         * written. Other errors are retried MAX_FAILED_ATTEMPTS times before giving up on the remaining items.
+         * @return the metrics that were not written (empty on success)
+         */
+        private List<Metrics> writeBatch(List<Metrics> batch) throws InterruptedException {
+            List<WriteRequest> writeRequests = new ArrayList<>(batch.size());
+            Map<String, Metrics> metricsById = new HashMap<>();
+            for (Metrics metrics : batch) {
+                try {
+                    Map<String, AttributeValue> item = prepareMetrics(metrics);
+                    writeRequests.add(new WriteRequest(new PutRequest(item)));
+                    metricsById.put(metrics.uploadId, metrics);
+                } catch (Exception e) {
+                    droppedCount.incrementAndGet();
+                    System.err.println("Discarding malformed metrics: " + e.getMessage());
+                }
+            }
+
+            Map<String, List<WriteRequest>> pending = new HashMap<>();
+            pending.put(tableName, writeRequests);
+
+            long backoff = MIN_BACKOFF_MS;
+            int failedAttempts = 0;
+            while (!pending.isEmpty() && !pending.get(tableName).isEmpty()) {
+                int attempted = pending.get(tableName).size();
+                try {
+                    BatchWriteItemResult result = dynamoDBClient.batchWriteItem(new BatchWriteItemRequest(pending));
+                    pending = result.getUnprocessedItems();
+
+                    int unprocessed = pending.isEmpty() ? 0 : pending.get(tableName).size();
+                    uploadedCount.addAndGet(attempted - unprocessed);
+                    if (unprocessed == 0) {
+                        return new ArrayList<>();
+                    }
+                    if (unprocessed < attempted) {
+                        backoff = MIN_BACKOFF_MS; // making progress
+                    }
+                } catch (ProvisionedThroughputExceededException e) {
+                    // throttled even after the client's own retries: keep waiting, nothing is lost
+                } catch (Exception e) {
+                    if (++failedAttempts >= MAX_FAILED_ATTEMPTS) {
+                        System.err.println("Could not upload " + attempted + " metrics: " + e.getMessage());
+                        List<Metrics> failed = new ArrayList<>(attempted);
+                        for (WriteRequest writeRequest : pending.get(tableName)) {
+                            failed.add(metricsById.get(writeRequest.getPutRequest().getItem().get("id").getS()));
+                        }
+                        return failed;
+                    }
+                    System.err.println("Could not upload metrics, retrying: " + e.getMessage());
+                }
+
+                backoff = backOff(backoff);
+            }
+            return new ArrayList<>();
+        }
+
+        /**
+         * Waits before a retry, with full jitter, so that many servers throttled at once don't retry in lockstep
+         * @return the backoff for the next retry
+         */
+        private long backOff(long backoff) throws InterruptedException {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+            return Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+
+        /**
+         * Adds written metrics to the statistics of their cells, with one atomic update per cell. Like writeBatch,
+         * throttled updates are retried until they succeed, and other errors MAX_FAILED_ATTEMPTS times, after which
+         * the metrics of the remaining cells are spilled to the journal, to be written and counted again on replay.
+         */
+        private void updateStats(List<Metrics> written) throws InterruptedException {
+            Map<String, CellStats> pending = new HashMap<>();
+            for (Metrics metrics : written) {
+                String cell;
+                try {
+                    cell = statsCell(new SolverArgumentParser(metrics.requestParams));
+                } catch (Exception e) {
+                    continue; // malformed, already discarded by writeBatch
+                }
+
+                CellStats stats = pending.get(cell);
+                if (stats == null) {
+                    stats = new CellStats();
+                    pending.put(cell, stats);
                 }
+                stats.add(metrics);
+            }
 
-                while ((metrics = uploadQueue.poll()) != null) {
+            long backoff = MIN_BACKOFF_MS;
+            int failedAttempts = 0;
+            while (!pending.isEmpty()) {
+                Exception error = null;
+                Iterator<Map.Entry<String, CellStats>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, CellStats> entry = it.next();
                     try {
-                        Map<String, AttributeValue> item = prepareMetrics(metrics);
-                        PutItemRequest putItemRequest = new PutItemRequest(tableName, item);
-                        dynamoDBClient.putItem(putItemRequest);
+                        addStats(entry.getKey(), entry.getValue());
+                        it.remove();
+                    } catch (ProvisionedThroughputExceededException e) {
+                        // throttled even after the client's own retries: keep waiting
                     } catch (Exception e) {
-                        System.err.println("Could not upload metric: " + e.getMessage());
-                        e.printStackTrace();
+                        error = e;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                if (error != null && ++failedAttempts >= MAX_FAILED_ATTEMPTS) {
+                    System.err.println("Could not update the metric statistics: " + error.getMessage());
+                    for (CellStats stats : pending.values()) {
+                        for (Metrics metrics : stats.metrics) {
+                            if (journal == null || !journal.append(metrics)) {
+                                failedStatsCount.incrementAndGet();
+                            }
+                        }
                     }
+                    return;
+                }
+                backoff = backOff(backoff);
+            }
+        }
+
+        /**
+         * Adds a cell's statistics. The maximum is set in the same update, on the condition that it grows, only when
+         * the batch's is higher than the one known for the cell; if another server raised it meanwhile, the update is
+         * rejected as a whole, and done again without it.
+         */
+        private void addStats(String cell, CellStats stats) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put("cell", new AttributeValue().withS(cell));
+
+            Map<String, String> names = new HashMap<>();
+            names.put("#count", "count");
+            names.put("#sum", "sum");
+            names.put("#sumOfSquares", "sumOfSquares");
+            Map<String, AttributeValue> values = new HashMap<>();
+            values.put(":count", new AttributeValue().withN(Long.toString(stats.count)));
+            values.put(":sum", new AttributeValue().withN(stats.sum.toString()));
+            values.put(":sumOfSquares", new AttributeValue().withN(stats.sumOfSquares.toString()));
+            String addExpression = "ADD #count :count, #sum :sum, #sumOfSquares :sumOfSquares";
+
+            Long knownMax = knownMaxima.get(cell);
+            if (knownMax == null || stats.max > knownMax) {
+                Map<String, String> maxNames = new HashMap<>(names);
+                maxNames.put("#max", "max");
+                Map<String, AttributeValue> maxValues = new HashMap<>(values);
+                maxValues.put(":max", new AttributeValue().withN(Long.toString(stats.max)));
+                try {
+                    dynamoDBClient.updateItem(new UpdateItemRequest().withTableName(statsTableName).withKey(key)
+                            .withUpdateExpression(addExpression + " SET #max = :max")
+                            .withConditionExpression("attribute_not_exists(#max) OR #max < :max")
+                            .withExpressionAttributeNames(maxNames)
+                            .withExpressionAttributeValues(maxValues));
+                    knownMaxima.put(cell, stats.max);
+                    return;
+                } catch (ConditionalCheckFailedException ignored) {
+                    // the stored maximum is already higher: nothing was added
                 }
             }
+
+            UpdateItemResult result = dynamoDBClient.updateItem(new UpdateItemRequest().withTableName(statsTableName)
+                    .withKey(key)
+                    .withUpdateExpression(addExpression)
+                    .withExpressionAttributeNames(names)
+                    .withExpressionAttributeValues(values)
+                    .withReturnValues(ReturnValue.ALL_NEW));
+            AttributeValue storedMax = result.getAttributes() != null ? result.getAttributes().get("max") : null;
+            if (storedMax != null) {
+                knownMaxima.put(cell, Long.parseLong(storedMax.getN()));
+            }
         }
 
         /**
@@ -131,7 +502,10 @@ public class MetricUploader {
             Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
             SolverArgumentParser requestArgs = new SolverArgumentParser(metrics.requestParams);
 
-            item.put("id", new AttributeValue().withS(UUID.randomUUID().toString()));
+            if (metrics.uploadId == null) {
+                metrics.uploadId = UUID.randomUUID().toString();
+            }
+            item.put("id", new AttributeValue().withS(metrics.uploadId));
             item.put("args.width", new AttributeValue().withN(requestArgs.getWidth().toString()));
             item.put("args.height", new AttributeValue().withN(requestArgs.getHeight().toString()));
             item.put("args.startx", new AttributeValue().withN(requestArgs.getStartX().toString()));
@@ -142,10 +516,60 @@ public class MetricUploader {
             item.put("args.y1", new AttributeValue().withN(requestArgs.getY1().toString()));
             item.put("args.strategy", new AttributeValue().withS(requestArgs.getSolverStrategy().toString()));
             item.put("args.imagePath", new AttributeValue().withS(requestArgs.getInputImage()));
+            item.put("lookupKey", new AttributeValue().withS(lookupKey(requestArgs.getSolverStrategy().toString(),
+                    requestArgs.getInputImage(), requestArgs.getX0(), requestArgs.getY0())));
             item.put("methodCount", new AttributeValue().withN(Long.toString(metrics.methodCount)));
+            item.put("instructionCount", new AttributeValue().withN(Long.toString(metrics.instructionCount)));
 
             return item;
         }
     }
 
+    /**
+     * @return the lookupKey of a request's metrics: its strategy, image and bucket of (x0, y0)
+     */
+    static String lookupKey(String strategy, String imagePath, long x0, long y0) {
+        return strategy + "#" + imagePath + "#" + bucket(x0) + "#" + bucket(y0);
+    }
+
+    /**
+     * @return the statistics cell of a request: its strategy, image and bucket of each position
+     */
+    static String statsCell(SolverArgumentParser args) {
+        return args.getSolverStrategy().toString() + "#" + args.getInputImage()
+                + "#" + bucket(args.getX0(), STATS_BUCKET_SIZE) + "#" + bucket(args.getX1(), STATS_BUCKET_SIZE)
+                + "#" + bucket(args.getY0(), STATS_BUCKET_SIZE) + "#" + bucket(args.getY1(), STATS_BUCKET_SIZE);
+    }
+
+    private static long bucket(long position) {
+        return bucket(position, LOOKUP_BUCKET_SIZE);
+    }
+
+    private static long bucket(long position, int size) {
+        // rounding down, also for (invalid) negative positions
+        return position >= 0 ? position / size : (position + 1) / size - 1;
+    }
+
+    /**
+     * The statistics of the method counts of some metrics of a cell, and the metrics themselves (to spill them if the
+     * update fails). Sums are exact, as DynamoDB numbers are
+     */
+    private static class CellStats {
+        final List<Metrics> metrics = new ArrayList<>();
+        long count = 0;
+        BigInteger sum = BigInteger.ZERO;
+        BigInteger sumOfSquares = BigInteger.ZERO;
+        long max = 0;
+
+        void add(Metrics metrics) {
+            long methodCount = metrics.methodCount;
+            this.metrics.add(metrics);
+            BigInteger value = BigInteger.valueOf(methodCount);
+            count++;
+            sum = sum.add(value);
+            sumOfSquares = sumOfSquares.add(value.multiply(value));
+            max = Math.max(max, methodCount);
+        }
+    }
+
 }
@@ -0,0 +1,574 @@
+package pt.ulisboa.tecnico.cnv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder for packed int rasters, faster than going through the ImageIO plugin stack.
+ *
+ * Writes 8-bit truecolor (RGB, or RGBA for rasters with alpha), non-interlaced images. Rows are filtered depending
+ * on the deflate level: not at all when storing without compression, with the Up filter for fast levels, and with
+ * the filter that minimizes the sum of absolute filtered values (the usual libpng heuristic) otherwise.
+ *
+ * In parallel mode, the image is split in blocks of rows that are filtered and deflated concurrently, each
+ * primed with the last 32KiB of the previous block as dictionary, and then concatenated into a single zlib stream
+ * (like pigz does). Deflater instances are pooled, and the ones the pool can't keep are ended right away, so their
+ * native memory is not left to finalization.
+ *
+ * Thread-safety: an encoder can be used concurrently, all per-encoding state is local or comes from the pool.
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+    private static final byte[] IHDR = { 'I', 'H', 'D', 'R' };
+    private static final byte[] IDAT = { 'I', 'D', 'A', 'T' };
+    private static final byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+    private static final int N_FILTERS = 5;
+    private static final int FILTER_ADAPTIVE = -1;
+
+    /**
+     * Up to this level every row uses the Up filter: trying all five filters costs several times more than fast
+     * deflate itself, and on our maps Up alone compresses within a few percent of the adaptive choice.
+     */
+    private static final int MAX_FIXED_FILTER_LEVEL = 3;
+
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MIN_BLOCK_BYTES = 1024 * 1024; // parallelizing smaller images isn't worth it
+    private static final int MAX_POOLED_DEFLATERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final int level;
+    private final int filterType;
+    private final ExecutorService parallelExecutor;
+    private final int parallelism;
+
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger(0);
+
+    /**
+     * Creates a sequential encoder.
+     * @param level the deflate level, from Deflater.NO_COMPRESSION (0) to Deflater.BEST_COMPRESSION (9)
+     */
+    public PngEncoder(int level) {
+        this(level, null, 1);
+    }
+
+    /**
+     * Creates an encoder that deflates blocks of rows in parallel.
+     * @param level the deflate level, from Deflater.NO_COMPRESSION (0) to Deflater.BEST_COMPRESSION (9)
+     * @param parallelExecutor the executor to run blocks on, null for sequential encoding
+     * @param parallelism the maximum number of blocks an image is split in
+     */
+    public PngEncoder(int level, ExecutorService parallelExecutor, int parallelism) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        }
+
+        this.level = level;
+        if (level == Deflater.NO_COMPRESSION) {
+            this.filterType = FILTER_NONE;
+        } else if (level <= MAX_FIXED_FILTER_LEVEL) {
+            this.filterType = FILTER_UP;
+        } else {
+            this.filterType = FILTER_ADAPTIVE;
+        }
+        this.parallelExecutor = parallelExecutor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Encodes a raster as PNG.
+     * @param raster the raster to encode
+     * @param os the stream to write the PNG to (not closed)
+     * @throws IOException if writing fails
+     */
+    public void encode(IntRaster raster, OutputStream os) throws IOException {
+        int bytesPerPixel = raster.hasAlpha() ? 4 : 3;
+
+        os.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        writeInt(header, raster.getWidth());
+        writeInt(header, raster.getHeight());
+        header.write(8); // bit depth
+        header.write(raster.hasAlpha() ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        header.write(0); // compression: deflate
+        header.write(0); // filter method: adaptive
+        header.write(0); // no interlacing
+        writeChunk(os, IHDR, header.toByteArray(), 0, header.size());
+
+        long rowBytes = 1L + (long) raster.getWidth() * bytesPerPixel;
+        int nBlocks = (int) Math.min(parallelism, rowBytes * raster.getHeight() / MIN_BLOCK_BYTES);
+        if (parallelExecutor == null || nBlocks <= 1) {
+            encodeSequential(raster, bytesPerPixel, os);
+        } else {
+            encodeParallel(raster, bytesPerPixel, nBlocks, os);
+        }
+
+        writeChunk(os, IEND, new byte[0], 0, 0);
+    }
+
+    private void encodeSequential(IntRaster raster, int bytesPerPixel, OutputStream os) throws IOException {
+        Deflater deflater = acquireDeflater();
+        try {
+            encodeSequential(raster, bytesPerPixel, deflater, os);
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    private void encodeSequential(IntRaster raster, int bytesPerPixel, Deflater deflater, OutputStream os)
+            throws IOException {
+        IdatOutputStream idat = new IdatOutputStream(os);
+        idat.write(zlibHeader());
+
+        RowFilter filter = new RowFilter(raster, bytesPerPixel, filterType);
+        Adler32 adler = new Adler32();
+        byte[] out = new byte[IDAT_CHUNK_SIZE];
+
+        for (int y = 0; y < raster.getHeight(); y++) {
+            byte[] row = filter.filterRow(y);
+            adler.update(row, 0, row.length);
+            deflater.setInput(row, 0, row.length);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+                idat.write(out, 0, n);
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+            idat.write(out, 0, n);
+        }
+
+        writeInt(idat, (int) adler.getValue());
+        idat.close();
+    }
+
+    private void encodeParallel(final IntRaster raster, final int bytesPerPixel, int nBlocks, OutputStream os)
+            throws IOException {
+        int height = raster.getHeight();
+        int rowsPerBlock = (height + nBlocks - 1) / nBlocks;
+
+        List<Future<Block>> blocks = new ArrayList<>();
+        for (int startY = 0; startY < height; startY += rowsPerBlock) {
+            final int blockStart = startY;
+            final int blockEnd = Math.min(height, startY + rowsPerBlock);
+            final boolean last = blockEnd == height;
+            blocks.add(parallelExecutor.submit(new Callable<Block>() {
+                @Override
+                public Block call() {
+                    return deflateBlock(raster, bytesPerPixel, blockStart, blockEnd, last);
+                }
+            }));
+        }
+
+        IdatOutputStream idat = new IdatOutputStream(os);
+        idat.write(zlibHeader());
+
+        long adler = 1L;
+        try {
+            for (Future<Block> future : blocks) {
+                Block block = future.get();
+                block.compressed.writeTo(idat);
+                adler = combineAdler32(adler, block.adler, block.uncompressedLength);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding PNG", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not encode PNG block", e.getCause());
+        } finally {
+            for (Future<Block> future : blocks) {
+                future.cancel(true);
+            }
+        }
+
+        writeInt(idat, (int) adler);
+        idat.close();
+    }
+
+    /**
+     * Filters and deflates rows [startY, endY[ as raw deflate data. Every block but the last ends with a sync
+     * flush, so they end on a byte boundary and can be concatenated.
+     */
+    private Block deflateBlock(IntRaster raster, int bytesPerPixel, int startY, int endY, boolean last) {
+        Deflater deflater = acquireDeflater();
+        try {
+            return deflateBlock(raster, bytesPerPixel, startY, endY, last, deflater);
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    private Block deflateBlock(IntRaster raster, int bytesPerPixel, int startY, int endY, boolean last,
+            Deflater deflater) {
+        RowFilter filter = new RowFilter(raster, bytesPerPixel, filterType);
+        if (startY > 0) {
+            // continue the previous block's window: prime the dictionary with its last filtered rows
+            int firstRow = Math.max(0, startY - (DICTIONARY_SIZE + filter.rowLength() - 1) / filter.rowLength());
+            ByteArrayOutputStream previousRows = new ByteArrayOutputStream();
+            for (int y = firstRow; y < startY; y++) {
+                byte[] row = filter.filterRow(y);
+                previousRows.write(row, 0, row.length);
+            }
+            byte[] dictionary = previousRows.toByteArray();
+            int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionary.length);
+            deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+        }
+
+        Block block = new Block();
+        Adler32 adler = new Adler32();
+        byte[] out = new byte[IDAT_CHUNK_SIZE];
+
+        for (int y = startY; y < endY; y++) {
+            byte[] row = filter.filterRow(y);
+            adler.update(row, 0, row.length);
+            block.uncompressedLength += row.length;
+            deflater.setInput(row, 0, row.length);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+                block.compressed.write(out, 0, n);
+            }
+        }
+
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+                block.compressed.write(out, 0, n);
+            }
+        } else {
+            int n;
+            do {
+                n = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+                block.compressed.write(out, 0, n);
+            } while (n == out.length);
+        }
+
+        block.adler = adler.getValue();
+        return block;
+    }
+
+    /**
+     * @return a reset Deflater, pooled if available
+     */
+    private Deflater acquireDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+
+        pooledDeflaters.decrementAndGet();
+        deflater.reset();
+        return deflater;
+    }
+
+    /**
+     * Returns a Deflater to the pool, or ends it if the pool is full. It must not be used afterwards.
+     */
+    private void releaseDeflater(Deflater deflater) {
+        if (pooledDeflaters.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+            deflaters.add(deflater);
+        } else {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private byte[] zlibHeader() {
+        // CMF: deflate with a 32K window; FLG: level hint, no preset dictionary, FCHECK makes it a multiple of 31
+        int cmf = 0x78;
+        int levelHint = level <= 1 ? 0 : (level < 6 ? 1 : (level == 6 ? 2 : 3));
+        int flg = levelHint << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    /**
+     * Computes the Adler-32 of the concatenation of two sequences, given their checksums (adapted from zlib).
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long BASE = 65521;
+        long rem = length2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+        if (sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if (sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if (sum2 >= (BASE << 1)) {
+            sum2 -= (BASE << 1);
+        }
+        if (sum2 >= BASE) {
+            sum2 -= BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(OutputStream os, byte[] type, byte[] data, int offset, int length)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, offset, length);
+
+        writeInt(os, length);
+        os.write(type);
+        os.write(data, offset, length);
+        writeInt(os, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream os, int value) throws IOException {
+        os.write(value >>> 24);
+        os.write(value >>> 16);
+        os.write(value >>> 8);
+        os.write(value);
+    }
+
+    /**
+     * Deflated data of a block of rows and the Adler-32 of its (filtered, uncompressed) bytes.
+     */
+    private static class Block {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        long adler;
+        long uncompressedLength = 0;
+    }
+
+    /**
+     * Buffers zlib data and writes it out as IDAT chunks of up to IDAT_CHUNK_SIZE bytes.
+     */
+    private static class IdatOutputStream extends OutputStream {
+        private final OutputStream os;
+        private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+        private int count = 0;
+
+        public IdatOutputStream(OutputStream os) {
+            this.os = os;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(os, IDAT, buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        /**
+         * Writes the pending data as a last chunk. Does not close the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+    }
+
+    /**
+     * Converts raster rows to PNG scanlines (filter type byte followed by the filtered bytes).
+     */
+    private static class RowFilter {
+        private final IntRaster raster;
+        private final int bytesPerPixel;
+        private final int filterType;
+        private final int rowLength;
+
+        private byte[] previous;
+        private byte[] current;
+        private int currentY = -1;
+        private final byte[][] candidates;
+
+        /**
+         * @param filterType the filter used on every row, or FILTER_ADAPTIVE to pick the best one for each row
+         */
+        public RowFilter(IntRaster raster, int bytesPerPixel, int filterType) {
+            this.raster = raster;
+            this.bytesPerPixel = bytesPerPixel;
+            this.filterType = filterType;
+            this.rowLength = raster.getWidth() * bytesPerPixel;
+
+            this.previous = new byte[rowLength];
+            this.current = new byte[rowLength];
+            this.candidates = new byte[filterType == FILTER_ADAPTIVE ? N_FILTERS : 1][1 + rowLength];
+        }
+
+        public int rowLength() {
+            return 1 + rowLength;
+        }
+
+        /**
+         * @return the filtered scanline for row y, valid until the next call
+         */
+        public byte[] filterRow(int y) {
+            if (y == currentY + 1 && currentY >= 0) {
+                byte[] tmp = previous;
+                previous = current;
+                current = tmp;
+            } else if (y > 0) {
+                unpack(y - 1, previous);
+            } else {
+                Arrays.fill(previous, (byte) 0);
+            }
+            unpack(y, current);
+            currentY = y;
+
+            if (filterType != FILTER_ADAPTIVE) {
+                applyFilter(filterType, candidates[0]);
+                return candidates[0];
+            }
+
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int filter = 0; filter < N_FILTERS; filter++) {
+                long sum = applyFilter(filter, candidates[filter]);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = filter;
+                }
+            }
+            return candidates[best];
+        }
+
+        private void unpack(int y, byte[] row) {
+            int[] data = raster.getData();
+            int offset = y * raster.getWidth();
+            int i = 0;
+            for (int x = 0; x < raster.getWidth(); x++) {
+                int pixel = data[offset + x];
+                row[i++] = (byte) (pixel >>> 16);
+                row[i++] = (byte) (pixel >>> 8);
+                row[i++] = (byte) pixel;
+                if (bytesPerPixel == 4) {
+                    row[i++] = (byte) (pixel >>> 24);
+                }
+            }
+        }
+
+        /**
+         * Applies a filter to the current row, writing the scanline to out. Each filter has its own loop, keeping
+         * the per-byte work branch-free.
+         * @return the sum of the absolute values of the filtered bytes (as signed bytes)
+         */
+        private long applyFilter(int filter, byte[] out) {
+            final byte[] cur = current;
+            final byte[] prev = previous;
+            final int bpp = bytesPerPixel;
+            final int n = rowLength;
+            long sum = 0;
+
+            out[0] = (byte) filter;
+            switch (filter) {
+                case FILTER_SUB:
+                    for (int i = 0; i < bpp; i++) {
+                        out[i + 1] = cur[i];
+                        sum += Math.abs(cur[i]);
+                    }
+                    for (int i = bpp; i < n; i++) {
+                        byte b = (byte) (cur[i] - cur[i - bpp]);
+                        out[i + 1] = b;
+                        sum += Math.abs(b);
+                    }
+                    break;
+                case FILTER_UP:
+                    for (int i = 0; i < n; i++) {
+                        byte b = (byte) (cur[i] - prev[i]);
+                        out[i + 1] = b;
+                        sum += Math.abs(b);
+                    }
+                    break;
+                case FILTER_AVERAGE:
+                    for (int i = 0; i < bpp; i++) {
+                        byte b = (byte) (cur[i] - ((prev[i] & 0xff) >>> 1));
+                        out[i + 1] = b;
+                        sum += Math.abs(b);
+                    }
+                    for (int i = bpp; i < n; i++) {
+                        byte b = (byte) (cur[i] - (((cur[i - bpp] & 0xff) + (prev[i] & 0xff)) >>> 1));
+                        out[i + 1] = b;
+                        sum += Math.abs(b);
+                    }
+                    break;
+                case FILTER_PAETH:
+                    for (int i = 0; i < bpp; i++) {
+                        // with no left neighbours, paeth(0, up, 0) is up
+                        byte b = (byte) (cur[i] - prev[i]);
+                        out[i + 1] = b;
+                        sum += Math.abs(b);
+                    }
+                    for (int i = bpp; i < n; i++) {
+                        int predictor = paeth(cur[i - bpp] & 0xff, prev[i] & 0xff, prev[i - bpp] & 0xff);
+                        byte b = (byte) (cur[i] - predictor);
+                        out[i + 1] = b;
+                        sum += Math.abs(b);
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        out[i + 1] = cur[i];
+                        sum += Math.abs(cur[i]);
+                    }
+            }
+            return sum;
+        }
+
+        private static int paeth(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            } else if (pb <= pc) {
+                return b;
+            } else {
+                return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package pt.ulisboa.tecnico.cnv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of in-memory buffers for encoded responses, used when the response size must be known before sending it
+ * (Content-Length). Buffers keep their capacity between uses, so steady-state requests do not need to grow them.
+ *
+ * At most maxPooled buffers are kept, and buffers that grew beyond maxRetainedBytes are dropped instead of pooled,
+ * so a burst of huge responses doesn't pin that memory forever.
+ */
+public class ResponseBufferPool {
+    private final ConcurrentLinkedQueue<Buffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+    private final int maxPooled;
+    private final int maxRetainedBytes;
+
+    public ResponseBufferPool(int maxPooled, int maxRetainedBytes) {
+        this.maxPooled = maxPooled;
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * @return an empty buffer, pooled if available
+     */
+    public Buffer acquire() {
+        Buffer buffer = pool.poll();
+        if (buffer == null) {
+            return new Buffer();
+        }
+
+        pooledCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. It must not be used afterwards.
+     * @param buffer the buffer obtained from acquire()
+     */
+    public void release(Buffer buffer) {
+        if (buffer.capacity() > maxRetainedBytes) {
+            return;
+        }
+
+        buffer.reset();
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            pool.add(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that exposes its capacity. writeTo() already writes the internal array without copying.
+     */
+    public static class Buffer extends ByteArrayOutputStream {
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+
+        public Buffer() {
+            super(INITIAL_CAPACITY);
+        }
+
+        public synchronized int capacity() {
+            return this.buf.length;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.commons.cli.*;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.Deflater;
 
 public class ServerArgumentParser {
     public enum ServerParameters {
@@ -12,7 +13,8 @@ public class ServerArgumentParser {
          * Set debug mode.
          */
         DEBUG_SHORT("d"), DEBUG("debug"), OUTPUT_DIR_SHORT("o"), OUTPUT_DIR("output-directory"), ADDRESS("address"),
-        PORT("port"), MAPS_DIR("maps");
+        PORT("port"), MAPS_DIR("maps"), IMAGE_CACHE_SIZE("image-cache-size"),
+        CHUNKED_RESPONSE("chunked"), PNG_COMPRESSION("png-compression"), PNG_PARALLEL("png-parallel");
 
         private final String text;
 
@@ -102,6 +104,39 @@ public class ServerArgumentParser {
             this.argValues.put(ServerParameters.MAPS_DIR.toString(), "datasets");
         }
 
+        if (this.cmd.hasOption(ServerParameters.IMAGE_CACHE_SIZE.toString())) {
+            final String cacheSize = this.cmd.getOptionValue(ServerParameters.IMAGE_CACHE_SIZE.toString());
+            this.argValues.put(ServerParameters.IMAGE_CACHE_SIZE.toString(), new Long(cacheSize));
+        } else {
+            this.argValues.put(ServerParameters.IMAGE_CACHE_SIZE.toString(), 128L);
+        }
+
+        this.argValues.put(ServerParameters.CHUNKED_RESPONSE.toString(),
+                cmd.hasOption(ServerParameters.CHUNKED_RESPONSE.toString()));
+
+        if (this.cmd.hasOption(ServerParameters.PNG_COMPRESSION.toString())) {
+            final String compression = this.cmd.getOptionValue(ServerParameters.PNG_COMPRESSION.toString());
+            if (compression.equals("imageio")) {
+                this.argValues.put(ServerParameters.PNG_COMPRESSION.toString(), -1);
+            } else if (compression.equals("fastest")) {
+                this.argValues.put(ServerParameters.PNG_COMPRESSION.toString(), Deflater.BEST_SPEED);
+            } else if (compression.equals("none")) {
+                this.argValues.put(ServerParameters.PNG_COMPRESSION.toString(), Deflater.NO_COMPRESSION);
+            } else {
+                final Integer level = new Integer(compression);
+                if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                    System.out.println("Invalid PNG compression level: " + compression);
+                    System.exit(1);
+                }
+                this.argValues.put(ServerParameters.PNG_COMPRESSION.toString(), level);
+            }
+        } else {
+            this.argValues.put(ServerParameters.PNG_COMPRESSION.toString(), -1);
+        }
+
+        this.argValues.put(ServerParameters.PNG_PARALLEL.toString(),
+                cmd.hasOption(ServerParameters.PNG_PARALLEL.toString()));
+
         this.argValues.put(ServerParameters.DEBUG.toString(), cmd.hasOption(ServerParameters.DEBUG.toString()));
         if (this.cmd.hasOption(ServerParameters.DEBUG.toString())) {
             for (Map.Entry<String, Object> param : this.argValues.entrySet()) {
@@ -129,6 +164,27 @@ public class ServerArgumentParser {
         mapsDirectoryOption.setRequired(false);
         this.options.addOption(mapsDirectoryOption);
 
+        final Option imageCacheSizeOption = new Option(ServerParameters.IMAGE_CACHE_SIZE.toString(), true,
+                "memory bound for decoded dataset images, in MiB (default: 128).");
+        imageCacheSizeOption.setRequired(false);
+        this.options.addOption(imageCacheSizeOption);
+
+        final Option chunkedResponseOption = new Option(ServerParameters.CHUNKED_RESPONSE.toString(), false,
+                "stream responses with chunked transfer encoding instead of buffering them to send a Content-Length.");
+        chunkedResponseOption.setRequired(false);
+        this.options.addOption(chunkedResponseOption);
+
+        final Option pngCompressionOption = new Option(ServerParameters.PNG_COMPRESSION.toString(), true,
+                "PNG encoder: imageio, or the built-in encoder with deflate level 0-9, none (0) or fastest (1) "
+                        + "(default: imageio).");
+        pngCompressionOption.setRequired(false);
+        this.options.addOption(pngCompressionOption);
+
+        final Option pngParallelOption = new Option(ServerParameters.PNG_PARALLEL.toString(), false,
+                "deflate blocks of rows in parallel with the built-in PNG encoder.");
+        pngParallelOption.setRequired(false);
+        this.options.addOption(pngParallelOption);
+
         final Option outputDirOption = new Option(ServerParameters.OUTPUT_DIR_SHORT.toString(),
                 ServerParameters.OUTPUT_DIR.toString(), true,
                 "output directory for generated images. By omission it is the system's temp directory.");
@@ -175,6 +231,28 @@ public class ServerArgumentParser {
         return (String) this.argValues.get(ServerParameters.MAPS_DIR.toString());
     }
 
+    /**
+     * @return the memory bound for the decoded image cache, in bytes
+     */
+    public Long getImageCacheSize() {
+        return (Long) this.argValues.get(ServerParameters.IMAGE_CACHE_SIZE.toString()) * 1024 * 1024;
+    }
+
+    public Boolean isChunkedResponse() {
+        return (Boolean) this.argValues.get(ServerParameters.CHUNKED_RESPONSE.toString());
+    }
+
+    /**
+     * @return the deflate level for the built-in PNG encoder, or -1 to encode with ImageIO
+     */
+    public Integer getPngCompressionLevel() {
+        return (Integer) this.argValues.get(ServerParameters.PNG_COMPRESSION.toString());
+    }
+
+    public Boolean isPngParallel() {
+        return (Boolean) this.argValues.get(ServerParameters.PNG_PARALLEL.toString());
+    }
+
     public Boolean isDebugging() {
         return (Boolean) this.argValues.get(ServerParameters.DEBUG.toString());
     }
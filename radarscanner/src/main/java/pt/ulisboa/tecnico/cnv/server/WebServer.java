@@ -1,16 +1,12 @@
 package pt.ulisboa.tecnico.cnv.server;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -28,9 +24,13 @@ public class WebServer {
     private static ServerArgumentParser sap = null;
     private static SolverFactory solverFactory;
     private static MetricUploader metricUploader;
+    private static DecodedImageCache imageCache;
+    private static ResponseBufferPool responseBufferPool;
+    private static PngEncoder pngEncoder = null;
 
     private static final int MAX_REQUESTS_PER_CPU = 5;
     private static final int N_THREADS = MAX_REQUESTS_PER_CPU * Runtime.getRuntime().availableProcessors();
+    private static final int MAX_POOLED_BUFFER_SIZE = 32 * 1024 * 1024; // bytes
 
     static {
         // just create a dummy metric hold to prevent instrumented code in the main thread from panicking
@@ -45,6 +45,29 @@ public class WebServer {
             WebServer.sap = new ServerArgumentParser(args);
 
             metricUploader = new MetricUploader();
+
+            // make the Solver's ImageIO.read of dataset maps hit the cache
+            imageCache = new DecodedImageCache(WebServer.sap.getImageCacheSize());
+            imageCache.install();
+
+            // ImageIO would otherwise buffer encoded output streams in temporary files
+            ImageIO.setUseCache(false);
+            responseBufferPool = new ResponseBufferPool(N_THREADS, MAX_POOLED_BUFFER_SIZE);
+
+            int pngLevel = WebServer.sap.getPngCompressionLevel();
+            if (pngLevel >= 0 && WebServer.sap.isPngParallel()) {
+                int nCpus = Runtime.getRuntime().availableProcessors();
+                pngEncoder = new PngEncoder(pngLevel, Executors.newFixedThreadPool(nCpus, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "PngEncoder worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }), nCpus);
+            } else if (pngLevel >= 0) {
+                pngEncoder = new PngEncoder(pngLevel);
+            }
         } catch (Exception e) {
             System.err.println("Could not initialize server: " + e);
             e.printStackTrace();
@@ -62,15 +85,35 @@ public class WebServer {
         server.createContext("/scan", new MyHandler());
         server.createContext("/test", new TestHandler());
 
-        server.setExecutor(Executors.newFixedThreadPool(N_THREADS));
+        server.setExecutor(Executors.newFixedThreadPool(N_THREADS, MetricTracker.threadFactory()));
         server.start();
 
         System.out.println(server.getAddress().toString());
     }
 
+    /**
+     * Encodes a raster as PNG into the given stream, without touching the disk.
+     * Uses the built-in encoder if one was configured, ImageIO otherwise.
+     */
+    private static void writePng(IntRaster raster, OutputStream os) throws IOException {
+        if (pngEncoder != null) {
+            pngEncoder.encode(raster, os);
+        } else if (!ImageIO.write(raster.toBufferedImage(), "png", os)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+
     static class TestHandler implements HttpHandler {
+        private static final String X_METRICS_QUEUE_DEPTH_HEADER = "X-Metrics-Queue-Depth";
+        private static final String X_METRICS_DROPPED_HEADER = "X-Metrics-Dropped";
+
         @Override
         public void handle(final HttpExchange t) throws IOException {
+            // the health check also reports how the metric upload is keeping up
+            final Headers hdrs = t.getResponseHeaders();
+            hdrs.add(X_METRICS_QUEUE_DEPTH_HEADER, Integer.toString(metricUploader.getQueueDepth()));
+            hdrs.add(X_METRICS_DROPPED_HEADER, Long.toString(metricUploader.getDroppedCount()));
+
             t.sendResponseHeaders(200, 0);
             t.getResponseBody().close();
         }
@@ -79,6 +122,7 @@ public class WebServer {
     static class MyHandler implements HttpHandler {
         private static final String X_REQUEST_ID_HEADER = "X-LB-Request-ID";
         private static final String X_METHOD_COUNT_HEADER = "X-Method-Count";
+        private static final String X_INSTRUCTION_COUNT_HEADER = "X-Instruction-Count";
 
         @Override
         public void handle(final HttpExchange t) throws IOException {
@@ -133,21 +177,10 @@ public class WebServer {
                 return;
             }
 
-            // Write figure file to disk.
-            File responseFile = null;
+            final IntRaster outputRaster;
             try {
-
-                final BufferedImage outputImg = s.solveImage();
-
-                final String outPath = WebServer.sap.getOutputDirectory();
-
-                final String imageName = s.toString();
-
-                final Path imagePathPNG = Paths.get(outPath, imageName);
-                ImageIO.write(outputImg, "png", imagePathPNG.toFile());
-
-                responseFile = imagePathPNG.toFile();
-
+                // from here on the server only deals with the packed pixels, an image is only needed for encoding
+                outputRaster = IntRaster.of(s.solveImage());
             } catch (final Exception e) {
                 e.printStackTrace();
                 t.sendResponseHeaders(500, 0);
@@ -155,6 +188,21 @@ public class WebServer {
                 return;
             }
 
+            // Encode the response in memory when its length must be known up front.
+            ResponseBufferPool.Buffer responseBuffer = null;
+            if (!sap.isChunkedResponse()) {
+                responseBuffer = responseBufferPool.acquire();
+                try {
+                    writePng(outputRaster, responseBuffer);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                    responseBufferPool.release(responseBuffer);
+                    t.sendResponseHeaders(500, 0);
+                    t.getResponseBody().close();
+                    return;
+                }
+            }
+
             final Metrics results = MetricTracker.requestEnd();
 
             metricUploader.upload(results);
@@ -166,6 +214,7 @@ public class WebServer {
             hdrs.add("Content-Type", "image/png");
             hdrs.add(X_REQUEST_ID_HEADER, requestId);
             hdrs.add(X_METHOD_COUNT_HEADER, Long.toString(results.methodCount));
+            hdrs.add(X_INSTRUCTION_COUNT_HEADER, Long.toString(results.instructionCount));
 
             hdrs.add("Access-Control-Allow-Origin", "*");
             hdrs.add("Access-Control-Allow-Credentials", "true");
@@ -173,10 +222,26 @@ public class WebServer {
             hdrs.add("Access-Control-Allow-Headers",
                     "Origin, Accept, X-Requested-With, Content-Type, Access-Control-Request-Method, Access-Control-Request-Headers");
 
-            t.sendResponseHeaders(200, responseFile.length());
-
             final OutputStream os = t.getResponseBody();
-            Files.copy(responseFile.toPath(), os);
+            if (responseBuffer != null) {
+                try {
+                    t.sendResponseHeaders(200, responseBuffer.size());
+                    responseBuffer.writeTo(os);
+                } finally {
+                    responseBufferPool.release(responseBuffer);
+                }
+            } else {
+                // length 0 means chunked transfer encoding: the PNG is encoded straight into the socket
+                t.sendResponseHeaders(200, 0);
+                try {
+                    writePng(outputRaster, os);
+                } catch (final Exception e) {
+                    // headers are already out: abort the exchange instead of ending the response as if it were whole
+                    e.printStackTrace();
+                    t.close();
+                    return;
+                }
+            }
 
             os.close();
 
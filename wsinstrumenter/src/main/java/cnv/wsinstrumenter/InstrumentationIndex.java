@@ -0,0 +1,116 @@
+package cnv.wsinstrumenter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which classes were instrumented, with which mode and from which input contents, so that unchanged
+ * classes are not instrumented again. It is stored as a properties file in the output directory, mapping each class
+ * file (relative to the output directory) to "mode:sha256-of-input".
+ *
+ * Thread-safety: entries are kept in a concurrent map, so it can be queried and updated from several workers.
+ */
+public class InstrumentationIndex {
+    private static final String INDEX_FILE_NAME = ".instrumentation-index";
+
+    private final Path out_dir;
+    private final Path index_path;
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the index for an output directory (empty if there is none yet).
+     * @param out_dir the output directory of the instrumented classes
+     * @throws IOException if an existing index can't be read
+     */
+    public InstrumentationIndex(Path out_dir) throws IOException {
+        this.out_dir = out_dir;
+        this.index_path = out_dir.resolve(INDEX_FILE_NAME);
+
+        if (Files.exists(index_path)) {
+            Properties properties = new Properties();
+            try (InputStream is = Files.newInputStream(index_path)) {
+                properties.load(is);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                entries.put(key, properties.getProperty(key));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a class was already instrumented with the given mode. The output being newer than the input is
+     * enough when the recorded mode matches; otherwise (e.g. the input was touched by a checkout) the input contents
+     * are hashed and compared.
+     * @param in_path the class to instrument
+     * @param out_path the corresponding instrumented class
+     * @param mode the instrumentation mode
+     * @return true if the output can be reused as-is
+     * @throws IOException if the files can't be read
+     */
+    public boolean isUpToDate(Path in_path, Path out_path, MultiThreadedStatistics.Mode mode) throws IOException {
+        if (!Files.exists(out_path)) {
+            return false;
+        }
+
+        String entry = entries.get(key(out_path));
+        if (entry == null || !entry.startsWith(mode.name() + ":")) {
+            return false;
+        }
+
+        if (Files.getLastModifiedTime(out_path).compareTo(Files.getLastModifiedTime(in_path)) >= 0) {
+            return true;
+        }
+
+        return entry.equals(mode.name() + ":" + hash(in_path));
+    }
+
+    /**
+     * Records that a class was instrumented.
+     * @param in_path the class that was instrumented
+     * @param out_path the corresponding instrumented class
+     * @param mode the instrumentation mode
+     * @throws IOException if the input can't be read
+     */
+    public void record(Path in_path, Path out_path, MultiThreadedStatistics.Mode mode) throws IOException {
+        entries.put(key(out_path), mode.name() + ":" + hash(in_path));
+    }
+
+    /**
+     * Writes the index to the output directory.
+     * @throws IOException if it can't be written
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(entries);
+        try (OutputStream os = Files.newOutputStream(index_path)) {
+            properties.store(os, "Instrumented classes (mode:sha256 of the original class)");
+        }
+    }
+
+    private String key(Path out_path) {
+        return out_dir.relativize(out_path).toString().replace('\\', '/');
+    }
+
+    private static String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(Files.readAllBytes(path))) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -22,17 +22,39 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class MultiThreadedStatistics {
     private static final String CLASS_METRIC_TRACKER = "pt/ulisboa/tecnico/cnv/server/MetricTracker";
 
+    /**
+     * The available instrumentation strategies.
+     */
+    public enum Mode {
+        /** one call per routine, counting method invocations */
+        METHODCALL,
+        /** one call per basic block, counting executed bytecode instructions */
+        BASICBLOCK
+    }
+
+    private static Mode mode = Mode.METHODCALL;
+
+    /**
+     * When set (--incremental), classes that were already instrumented with the same mode are skipped
+     */
+    private static InstrumentationIndex index = null;
+
     public static void printUsage() {
-        System.err.println("Syntax: java MultiThreadedStatistics in_path [out_path]");
-        System.err.println("        in_path:  directory from which the class files are read");
-        System.err.println("        out_path: directory to which the class files are written");
-        System.err.println("        Both in_path and out_path are required unless stat_type is static");
-        System.err.println("        in which case only in_path is required");
+        System.err.println("Syntax: java MultiThreadedStatistics [--parallel] [--incremental] in_path out_path [mode]");
+        System.err.println("        in_path:       directory from which the class files are read");
+        System.err.println("        out_path:      directory to which the class files are written");
+        System.err.println("        mode:          methodcall (default) or basicblock");
+        System.err.println("        --parallel:    instrument classes concurrently on a fork-join pool");
+        System.err.println("        --incremental: skip classes that are unchanged since they were last instrumented");
         System.exit(-1);
     }
 
@@ -72,26 +94,163 @@ public class MultiThreadedStatistics {
     }
 
     /**
-     * Runs the MethodCallTracker.instrument on the given .class file.
+     * Calls the instrumenter on all .class files in a directory and its subdirectories, in parallel.
+     * BIT keeps all its state in the ClassInfo being instrumented, so different classes can be processed
+     * concurrently.
+     * @param in_dir the input directory of classes to instrument
+     * @param out_dir the output directory
+     */
+    public static void instrumentDirParallel(Path in_dir, Path out_dir) {
+        if (!Files.isDirectory(in_dir)) {
+            System.err.printf("%s is not a directory%n", in_dir);
+            System.exit(-1);
+        } else if (Files.exists(out_dir) && !Files.isDirectory(out_dir)) {
+            System.err.printf("%s is not a directory%n", out_dir);
+            System.exit(-1);
+        }
+
+        new ForkJoinPool().invoke(new InstrumentDirTask(in_dir, out_dir));
+    }
+
+    /**
+     * Runs the instrumenter for the selected mode on the given .class file.
      * @param in_path the file to instrument
      * @param out_path the corresponding output file
+     * @throws IOException if the incremental index can't read the files
      */
-    public static void instrumentFile(Path in_path, Path out_path) {
+    public static void instrumentFile(Path in_path, Path out_path) throws IOException {
+        if (index != null && index.isUpToDate(in_path, out_path, mode)) {
+            return;
+        }
+
         ClassInfo ci = new ClassInfo(in_path.toString());
 
-        MethodCallTracker.instrument(ci);
+        switch (mode) {
+            case BASICBLOCK:
+                BasicBlockTracker.instrument(ci);
+                break;
+            default:
+                MethodCallTracker.instrument(ci);
+        }
 
         ci.write(out_path.toString());
+
+        if (index != null) {
+            index.record(in_path, out_path, mode);
+        }
     }
 
     public static void main(String[] argv) throws IOException {
-        if (argv.length != 2) {
+        boolean parallel = false;
+        boolean incremental = false;
+        List<String> positional = new ArrayList<>();
+        for (String arg : argv) {
+            if (arg.equals("--parallel")) {
+                parallel = true;
+            } else if (arg.equals("--incremental")) {
+                incremental = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() != 2 && positional.size() != 3) {
             printUsage();
         }
 
-        Path in_dir = Paths.get(argv[0]);
-        Path out_dir = Paths.get(argv[1]);
-        instrumentDirRecurse(in_dir, out_dir);
+        if (positional.size() == 3) {
+            try {
+                mode = Mode.valueOf(positional.get(2).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.printf("Unknown instrumentation mode: %s%n", positional.get(2));
+                printUsage();
+            }
+        }
+
+        Path in_dir = Paths.get(positional.get(0));
+        Path out_dir = Paths.get(positional.get(1));
+
+        if (incremental) {
+            Files.createDirectories(out_dir);
+            index = new InstrumentationIndex(out_dir);
+        }
+
+        if (parallel) {
+            instrumentDirParallel(in_dir, out_dir);
+        } else {
+            instrumentDirRecurse(in_dir, out_dir);
+        }
+
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    /**
+     * Fork-join task that instruments a directory: each subdirectory and each class file becomes a subtask.
+     */
+    private static class InstrumentDirTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path in_dir;
+        private final Path out_dir;
+
+        public InstrumentDirTask(Path in_dir, Path out_dir) {
+            this.in_dir = in_dir;
+            this.out_dir = out_dir;
+        }
+
+        @Override
+        protected void compute() {
+            String[] fileList = in_dir.toFile().list();
+            assert fileList != null;
+
+            try {
+                Files.createDirectories(out_dir);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not create " + out_dir, e);
+            }
+
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (String filename : fileList) {
+                Path in_path = in_dir.resolve(filename);
+                Path out_path = out_dir.resolve(filename);
+
+                if (Files.isDirectory(in_path)) {
+                    tasks.add(new InstrumentDirTask(in_path, out_path));
+                } else if (in_path.toString().endsWith(".class")) {
+                    tasks.add(new InstrumentFileTask(in_path, out_path));
+                } else {
+                    System.err.printf("File not processed: %s%n", in_path);
+                }
+            }
+
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Fork-join task that instruments a single class file.
+     */
+    private static class InstrumentFileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path in_path;
+        private final Path out_path;
+
+        public InstrumentFileTask(Path in_path, Path out_path) {
+            this.in_path = in_path;
+            this.out_path = out_path;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                instrumentFile(in_path, out_path);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not instrument " + in_path, e);
+            }
+        }
     }
 
     /**
@@ -109,4 +268,23 @@ public class MultiThreadedStatistics {
         }
     }
 
+    /**
+     * This class contains the basic block instrumenter logic. It adds a method call to
+     * CLASS_METRIC_TRACKER.METHOD_INCR_INSTRUCTION_COUNT before each basic block, passing the number of
+     * instructions in the block, so the tracker counts executed instructions with one call per block.
+     */
+    private static class BasicBlockTracker {
+        private static final String METHOD_INCR_INSTRUCTION_COUNT = "incrInstructionCount";
+
+        public static void instrument(ClassInfo ci) {
+            for (Enumeration<?> e = ci.getRoutines().elements(); e.hasMoreElements(); ) {
+                Routine routine = (Routine) e.nextElement();
+                for (Enumeration<?> b = routine.getBasicBlocks().elements(); b.hasMoreElements(); ) {
+                    BasicBlock bb = (BasicBlock) b.nextElement();
+                    bb.addBefore(CLASS_METRIC_TRACKER, METHOD_INCR_INSTRUCTION_COUNT, bb.size());
+                }
+            }
+        }
+    }
+
 }